@@ -23,6 +23,8 @@
  */
 package name.aikesommer.authenticator;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * This is the class that has to be implemented and registered for authentication
@@ -103,6 +105,44 @@ public abstract class PluggableAuthenticator {
      */
     public abstract AuthenticationRequest.Status authenticate(AuthenticationManager manager, AuthenticationRequest request);
     
+    /**
+     * Asynchronous variant of tryAuthenticate. Overwrite this if checking the
+     * credentials involves slow backends, so that the container does not have
+     * to block a request thread while waiting.
+     * Calls to the AuthenticationManager made before the returned stage
+     * completes are allowed from any thread, the principal passed to
+     * register() will be established once the request is resumed.
+     * A stage that has not completed right away may complete with null to
+     * have this method called again on a request thread. This way only the
+     * blocking part runs elsewhere and its result is applied to the request
+     * on the request thread.
+     * The default implementation just calls tryAuthenticate.
+     *
+     * @param manager The AuthenticationManager that allows for access
+     *                to some common actions while doing authentication.
+     * @param request The AuthenticationRequest encapsulating all data
+     *                needed to perform authentication.
+     * @return A stage completing with the same values tryAuthenticate returns.
+     */
+    public CompletionStage<AuthenticationRequest.Status> tryAuthenticateAsync(AuthenticationManager manager, AuthenticationRequest request) {
+        return CompletableFuture.completedFuture(tryAuthenticate(manager, request));
+    }
+
+    /**
+     * Asynchronous variant of authenticate. See tryAuthenticateAsync for
+     * details.
+     * The default implementation just calls authenticate.
+     *
+     * @param manager The AuthenticationManager that allows for access
+     *                to some common actions while doing authentication.
+     * @param request The AuthenticationRequest encapsulating all data
+     *                needed to perform authentication.
+     * @return A stage completing with the same values authenticate returns.
+     */
+    public CompletionStage<AuthenticationRequest.Status> authenticateAsync(AuthenticationManager manager, AuthenticationRequest request) {
+        return CompletableFuture.completedFuture(authenticate(manager, request));
+    }
+
     /**
      * This method allows for managing user-session, such as logging a user out.
      * 
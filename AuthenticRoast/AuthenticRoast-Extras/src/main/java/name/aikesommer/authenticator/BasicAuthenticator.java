@@ -24,6 +24,9 @@
 package name.aikesommer.authenticator;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletResponse;
 import name.aikesommer.authenticator.AuthenticationRequest.ManageAction;
 import name.aikesommer.authenticator.AuthenticationRequest.Status;
@@ -39,6 +42,20 @@ import name.aikesommer.authenticator.thirdparty.Base64;
  */
 public abstract class BasicAuthenticator extends PluggableAuthenticator {
 
+    /**
+     * The name of the user this authenticator has registered, as the
+     * container does not know the principal yet while manage() is called.
+     */
+    private static final String USERNAME_NOTE = BasicAuthenticator.class.getName() + ".USERNAME";
+
+    private final CredentialCheckExecutor.Holder executor = new CredentialCheckExecutor.Holder() {
+
+        @Override
+        protected CredentialCheckExecutor create() {
+            return getCredentialCheckExecutor();
+        }
+    };
+
     /**
      * This method checks the supplied credentials and returns true if they
      * are valid.
@@ -66,7 +83,12 @@ public abstract class BasicAuthenticator extends PluggableAuthenticator {
      */
     protected abstract String getRealmName();
 
-    private String checkAuthentication(AuthenticationManager manager, AuthenticationRequest request) {
+    /**
+     * Get username and password from the Authorization-header.
+     *
+     * @return Username and password or null if there are none.
+     */
+    private String[] getCredentials(AuthenticationRequest request) {
         String authHeader = request.getHttpServletRequest().getHeader("Authorization");
         if (authHeader != null) {
             String[] authTokens = authHeader.split(" ");
@@ -85,24 +107,84 @@ public abstract class BasicAuthenticator extends PluggableAuthenticator {
             if (authStrs.length != 2) {
                 return null;
             }
+            return authStrs;
+        }
+        return null;
+    }
 
-            if (checkCredentials(manager, request, authStrs[0], authStrs[1])) {
-                return authStrs[0];
-            }
+    private String checkAuthentication(AuthenticationManager manager, AuthenticationRequest request) {
+        String[] credentials = getCredentials(request);
+        if (credentials != null && checkCredentials(manager, request, credentials[0], credentials[1])) {
+            return credentials[0];
         }
         return null;
     }
 
+    /**
+     * Overwrite this to run checkCredentials() and loadPrincipal() for
+     * requests carrying credentials on a separate thread instead of blocking
+     * the request thread. The default returns null, so they are called on
+     * the request thread.
+     * It is called once, the executor returned is shut down when this
+     * authenticator is destroyed.
+     *
+     * @return The executor to use or null.
+     */
+    protected CredentialCheckExecutor getCredentialCheckExecutor() {
+        return null;
+    }
+
+    /**
+     * Shut down the executor returned by getCredentialCheckExecutor(), called
+     * by the container when this authenticator is destroyed.
+     */
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    public CompletionStage<Status> tryAuthenticateAsync(final AuthenticationManager manager,
+            final AuthenticationRequest request) {
+        CredentialCheckExecutor executor = this.executor.get();
+        final String[] credentials = executor == null ? null : getCredentials(request);
+        if (credentials == null) {
+            return super.tryAuthenticateAsync(manager, request);
+        }
+        return executor.check(this, request, new Callable<SimplePrincipal>() {
+
+            public SimplePrincipal call() {
+                return checkCredentials(manager, request, credentials[0], credentials[1])
+                        ? loadPrincipal(manager, request, credentials[0]) : null;
+            }
+        }, new CredentialCheckExecutor.Continuation<SimplePrincipal>() {
+
+            public Status apply(SimplePrincipal principal) {
+                if (principal == null) {
+                    return Status.None;
+                }
+                register(manager, request, credentials[0], principal);
+                return Status.Success;
+            }
+        });
+    }
+
     @Override
     public Status tryAuthenticate(AuthenticationManager manager, AuthenticationRequest request) {
         String username;
         if ((username = checkAuthentication(manager, request)) != null) {
-            manager.register(request, loadPrincipal(manager, request, username));
+            register(manager, request, username, loadPrincipal(manager, request, username));
             return Status.Success;
         }
         return Status.None;
     }
 
+    private void register(AuthenticationManager manager, AuthenticationRequest request,
+            String username, SimplePrincipal principal) {
+        request.getAuthenticationMap().put(USERNAME_NOTE, username);
+        manager.register(request, principal);
+    }
+
     @Override
     public Status authenticate(AuthenticationManager manager, AuthenticationRequest request) {
         request.getHttpServletResponse().setHeader("WWW-Authenticate",
@@ -121,8 +203,7 @@ public abstract class BasicAuthenticator extends PluggableAuthenticator {
         if (username == null) {
             return ManageAction.Clear;
         }
-        SimplePrincipal user = SimplePrincipal.getPrincipal(request.getHttpServletRequest());
-        if (! user.getName().equals(username)) {
+        if (!username.equals(request.getAuthenticationMap().get(USERNAME_NOTE))) {
             return ManageAction.Clear;
         }
         return ManageAction.None;
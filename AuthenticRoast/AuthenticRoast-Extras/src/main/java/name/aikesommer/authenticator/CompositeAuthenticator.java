@@ -24,6 +24,10 @@
 package name.aikesommer.authenticator;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 import name.aikesommer.authenticator.AuthenticationRequest.ManageAction;
 import name.aikesommer.authenticator.AuthenticationRequest.Status;
 
@@ -120,6 +124,53 @@ public abstract class CompositeAuthenticator extends PluggableAuthenticator {
         return Status.None;
     }
 
+    @Override
+    public CompletionStage<Status> tryAuthenticateAsync(AuthenticationManager manager,
+            AuthenticationRequest request) {
+        return next(getAuthenticators(manager, request).iterator(), true, manager, request);
+    }
+
+    @Override
+    public CompletionStage<Status> authenticateAsync(AuthenticationManager manager,
+            AuthenticationRequest request) {
+        return next(getAuthenticators(manager, request).iterator(), false, manager, request);
+    }
+
+    /**
+     * Ask the remaining authenticators one after the other, until one of them
+     * returns something other than Status.None. Authenticators completing
+     * right away are handled in a loop, so only asynchronous ones add stages.
+     * A stage completing with null asks to be called again on a request
+     * thread, which is passed on, so all of them are asked again then.
+     */
+    private CompletionStage<Status> next(final Iterator<PluggableAuthenticator> it,
+            final boolean tried, final AuthenticationManager manager,
+            final AuthenticationRequest request) {
+        while (it.hasNext()) {
+            PluggableAuthenticator authenticator = it.next();
+            CompletionStage<Status> stage = tried ? authenticator.tryAuthenticateAsync(manager, request)
+                    : authenticator.authenticateAsync(manager, request);
+            CompletableFuture<Status> future = stage.toCompletableFuture();
+            if (!future.isDone() || future.isCompletedExceptionally()) {
+                return stage.thenCompose(new Function<Status, CompletionStage<Status>>() {
+
+                    public CompletionStage<Status> apply(Status status) {
+                        if (status == null || status != Status.None) {
+                            return CompletableFuture.completedFuture(status);
+                        }
+                        return next(it, tried, manager, request);
+                    }
+                });
+            }
+            Status status = future.join();
+            if (status != null && status != Status.None) {
+                return future;
+            }
+        }
+
+        return CompletableFuture.completedFuture(Status.None);
+    }
+
     @Override
     public ManageAction manage(AuthenticationManager manager,
             AuthenticationRequest request) {
@@ -0,0 +1,339 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+import name.aikesommer.authenticator.AuthenticationRequest.Status;
+
+/**
+ * Runs blocking user callbacks, like checking credentials against a
+ * directory or database, off the request thread.
+ * On Java 21 and later the callbacks run on virtual threads, older JDKs
+ * fall back to a fixed pool of platform threads. In both cases no more than
+ * <code>maxConcurrency</code> callbacks run at the same time and each of them
+ * fails with a TimeoutException if it does not complete in time.
+ * Only the callbacks run on these threads, their results are applied to the
+ * request on a request thread, see
+ * {@link #check(PluggableAuthenticator, AuthenticationRequest, Callable, Continuation)}.
+ * Return an instance from <code>getCredentialCheckExecutor()</code> in
+ * {@link FormAuthenticator}, {@link BasicAuthenticator} or
+ * {@link TicketAuthenticator} to use it. They ask for it only once and shut
+ * it down when they are destroyed. The threads of an executor are daemons
+ * and end once they have been idle for a while, and a single timer thread
+ * is shared by all executors.
+ *
+ * @author Ratcash
+ */
+public class CredentialCheckExecutor {
+
+    private static final Logger log = Logger.getLogger(CredentialCheckExecutor.class.getName());
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final String CHECK_NOTE = CredentialCheckExecutor.class.getName() + ".CHECK.";
+
+    /**
+     * The seconds idle threads are kept.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Fails callbacks that do not complete in time, for all executors.
+     */
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final long timeoutMillis;
+
+    private final boolean virtual;
+
+    /**
+     * Create an executor using virtual threads if the JDK supports them.
+     *
+     * @param maxConcurrency The maximum number of callbacks running at the
+     *                       same time.
+     * @param timeout The time after which a callback is considered failed.
+     * @param unit The unit of timeout.
+     */
+    public CredentialCheckExecutor(int maxConcurrency, long timeout, TimeUnit unit) {
+        this(maxConcurrency, timeout, unit, true);
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param maxConcurrency The maximum number of callbacks running at the
+     *                       same time.
+     * @param timeout The time after which a callback is considered failed.
+     * @param unit The unit of timeout.
+     * @param preferVirtualThreads false to always use platform threads.
+     */
+    public CredentialCheckExecutor(int maxConcurrency, long timeout, TimeUnit unit,
+            boolean preferVirtualThreads) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.timeoutMillis = unit.toMillis(timeout);
+
+        ExecutorService virtualExecutor = preferVirtualThreads ? virtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.permits = new Semaphore(maxConcurrency);
+            this.virtual = true;
+        } else {
+            this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, KEEP_ALIVE, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(maxConcurrency * 16),
+                    threadFactory("roast-credential-check"));
+            ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+            this.permits = null;
+            this.virtual = false;
+        }
+    }
+
+    /**
+     * @return true if callbacks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Run the callback on a separate thread.
+     *
+     * @param callback The blocking callback to run.
+     * @return A stage completing with the result of the callback, or
+     *         exceptionally if it failed, timed out or was rejected.
+     */
+    public <T> CompletionStage<T> submit(final Callable<T> callback) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Future<?> task;
+        try {
+            task = executor.submit(new Runnable() {
+
+                public void run() {
+                    try {
+                        if (permits != null) {
+                            permits.acquire();
+                        }
+                        try {
+                            result.complete(callback.call());
+                        } finally {
+                            if (permits != null) {
+                                permits.release();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        if (timeoutMillis > 0) {
+            final ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+
+                public void run() {
+                    if (result.completeExceptionally(new TimeoutException(
+                            "credential check did not complete within " + timeoutMillis + "ms"))) {
+                        task.cancel(true);
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            /** so the timer is left idle once there is nothing to time out */
+            result.whenComplete(new BiConsumer<T, Throwable>() {
+
+                public void accept(T value, Throwable failure) {
+                    timeout.cancel(false);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Run callback on a separate thread and carry on with its result on the
+     * request thread.
+     * The first call for request starts callback and returns a stage
+     * completing with null once it is done, so the authenticator is called
+     * again on a request thread. That call passes the result of callback to
+     * continuation and returns what it returns. So only callback must not
+     * touch the request or the AuthenticationManager.
+     *
+     * @param authenticator The authenticator the check is done for.
+     * @param request The current request.
+     * @param callback The blocking callback to run.
+     * @param continuation Applies the result to the request.
+     * @return The stage to return from tryAuthenticateAsync or
+     *         authenticateAsync.
+     */
+    public <T> CompletionStage<Status> check(PluggableAuthenticator authenticator,
+            AuthenticationRequest request, Callable<T> callback, Continuation<T> continuation) {
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        String note = CHECK_NOTE + authenticator.getClass().getName();
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> checked = (CompletableFuture<T>) httpRequest.getAttribute(note);
+        if (checked == null) {
+            checked = submit(callback).toCompletableFuture();
+            httpRequest.setAttribute(note, checked);
+            return checked.thenApply(new Function<T, Status>() {
+
+                public Status apply(T result) {
+                    return null;
+                }
+            });
+        }
+        httpRequest.removeAttribute(note);
+        return CompletableFuture.completedFuture(continuation.apply(checked.join()));
+    }
+
+    /**
+     * Stop accepting new callbacks and interrupt the running ones.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Applies the result of a callback to the request, on the request thread.
+     */
+    public static interface Continuation<T> {
+
+        Status apply(T result);
+
+    }
+
+    /**
+     * The executor of an authenticator, created by the authenticator the
+     * first time it is needed and shut down when the authenticator is
+     * destroyed.
+     * It is used internally only.
+     */
+    static abstract class Holder {
+
+        private CredentialCheckExecutor executor;
+
+        private volatile boolean created = false;
+
+        /**
+         * Create the executor, called once.
+         *
+         * @return The executor or null to run callbacks on the request thread.
+         */
+        protected abstract CredentialCheckExecutor create();
+
+        CredentialCheckExecutor get() {
+            if (!created) {
+                synchronized (this) {
+                    if (!created) {
+                        executor = create();
+                        created = true;
+                    }
+                }
+            }
+            return executor;
+        }
+
+        void shutdown() {
+            CredentialCheckExecutor current;
+            synchronized (this) {
+                current = executor;
+                executor = null;
+                created = true;
+            }
+            if (current != null) {
+                current.shutdown();
+            }
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "roast-credential-timer");
+                thread.setDaemon(true);
+                thread.setContextClassLoader(CredentialCheckExecutor.class.getClassLoader());
+                return thread;
+            }
+        });
+        result.setRemoveOnCancelPolicy(true);
+        result.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    /**
+     * Look up Executors.newVirtualThreadPerTaskExecutor(), which is only
+     * available on Java 21 and later.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception ex) {
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("virtual threads are not available, using platform threads: " + ex);
+            }
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
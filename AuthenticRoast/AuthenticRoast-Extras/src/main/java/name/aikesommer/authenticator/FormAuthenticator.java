@@ -23,6 +23,9 @@
  */
 package name.aikesommer.authenticator;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.PreDestroy;
 import name.aikesommer.authenticator.AuthenticationRequest.ManageAction;
 import name.aikesommer.authenticator.AuthenticationRequest.Status;
 
@@ -40,6 +43,14 @@ public abstract class FormAuthenticator extends PluggableAuthenticator {
     public static final String LOGIN_USERNAME = "j_username";
     public static final String LOGIN_PASSWORD = "j_password";
 
+    private final CredentialCheckExecutor.Holder executor = new CredentialCheckExecutor.Holder() {
+
+        @Override
+        protected CredentialCheckExecutor create() {
+            return getCredentialCheckExecutor();
+        }
+    };
+
     /**
      * This method checks the supplied credentials and returns true if they
      * are valid.
@@ -80,11 +91,61 @@ public abstract class FormAuthenticator extends PluggableAuthenticator {
         return "/";
     }
 
+    /**
+     * Overwrite this to run checkCredentials() and loadPrincipal() for login
+     * attempts on a separate thread instead of blocking the request thread.
+     * The default returns null, so they are called on the request thread.
+     * It is called once, the executor returned is shut down when this
+     * authenticator is destroyed.
+     *
+     * @return The executor to use or null.
+     */
+    protected CredentialCheckExecutor getCredentialCheckExecutor() {
+        return null;
+    }
+
+    /**
+     * Shut down the executor returned by getCredentialCheckExecutor(), called
+     * by the container when this authenticator is destroyed.
+     */
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    public CompletionStage<Status> tryAuthenticateAsync(final AuthenticationManager manager,
+            final AuthenticationRequest request) {
+        CredentialCheckExecutor executor = this.executor.get();
+        if (executor == null || !isLoginAttempt(request)) {
+            return super.tryAuthenticateAsync(manager, request);
+        }
+        final String user = request.getParameter(LOGIN_USERNAME);
+        final String password = request.getParameter(LOGIN_PASSWORD);
+        return executor.check(this, request, new Callable<SimplePrincipal>() {
+
+            public SimplePrincipal call() {
+                return checkCredentials(manager, request, user, password)
+                        ? loadPrincipal(manager, request, user) : null;
+            }
+        }, new CredentialCheckExecutor.Continuation<SimplePrincipal>() {
+
+            public Status apply(SimplePrincipal principal) {
+                return login(manager, request, principal);
+            }
+        });
+    }
+
+    private boolean isLoginAttempt(AuthenticationRequest request) {
+        return request.getRequestPath().endsWith(LOGIN_ACTION)
+                && request.getParameter(LOGIN_PASSWORD) != null;
+    }
+
     @Override
     public Status tryAuthenticate(AuthenticationManager manager, AuthenticationRequest request) {
-        if (manager.matchesRequest(request) && request.getSessionMap().containsKey(PRINCIPAL_NOTE)) {
-            manager.register(request, (SimplePrincipal) request.getSessionMap().get(PRINCIPAL_NOTE));
-            request.getSessionMap().remove(PRINCIPAL_NOTE);
+        if (manager.matchesRequest(request) && request.getAuthenticationMap().containsKey(PRINCIPAL_NOTE)) {
+            manager.register(request, (SimplePrincipal) request.getAuthenticationMap().get(PRINCIPAL_NOTE));
+            request.getAuthenticationMap().remove(PRINCIPAL_NOTE);
             manager.restoreRequest(request);
             return Status.Success;
         }
@@ -96,28 +157,39 @@ public abstract class FormAuthenticator extends PluggableAuthenticator {
             String user = request.getParameter(LOGIN_USERNAME);
             String password = request.getParameter(LOGIN_PASSWORD);
 
-            if (password != null) {
-                if (checkCredentials(manager, request, user, password)) {
-                    request.getSessionMap().put(PRINCIPAL_NOTE, loadPrincipal(manager, request, user));
-                    String queryString = request.getHttpServletRequest().getQueryString();
-                    if (queryString != null && queryString.length() > 0) {
-                        manager.addQueryString(request, queryString);
-                    }
-                    if (manager.hasRequest(request)) {
-                        manager.redirectToRequest(request);
-                    } else {
-                        manager.saveRequest(request, getNextPath());
-                        manager.forward(request, getNextPath());
-                    }
-                    return Status.Continue;
-                }
+            if (password != null && checkCredentials(manager, request, user, password)) {
+                return login(manager, request, loadPrincipal(manager, request, user));
             }
+            return login(manager, request, null);
+        }
+
+        return Status.None;
+    }
 
+    /**
+     * Carry on with a login-attempt.
+     *
+     * @param principal The principal of the user or null if the credentials
+     *                  were invalid.
+     */
+    private Status login(AuthenticationManager manager, AuthenticationRequest request,
+            SimplePrincipal principal) {
+        if (principal == null) {
             manager.forward(request, getErrorPage());
             return Status.Continue;
         }
-
-        return Status.None;
+        request.getAuthenticationMap().put(PRINCIPAL_NOTE, principal);
+        String queryString = request.getHttpServletRequest().getQueryString();
+        if (queryString != null && queryString.length() > 0) {
+            manager.addQueryString(request, queryString);
+        }
+        if (manager.hasRequest(request)) {
+            manager.redirectToRequest(request);
+        } else {
+            manager.saveRequest(request, getNextPath());
+            manager.forward(request, getNextPath());
+        }
+        return Status.Continue;
     }
 
     @Override
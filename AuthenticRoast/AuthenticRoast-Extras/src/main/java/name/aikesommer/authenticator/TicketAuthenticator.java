@@ -23,6 +23,9 @@
  */
 package name.aikesommer.authenticator;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import javax.annotation.PreDestroy;
 import name.aikesommer.authenticator.AuthenticationRequest.ManageAction;
 import name.aikesommer.authenticator.AuthenticationRequest.Status;
 
@@ -34,6 +37,14 @@ public abstract class TicketAuthenticator extends PluggableAuthenticator {
 
     public static final String TICKET_PARAM = "j_security_ticket";
 
+    private final CredentialCheckExecutor.Holder executor = new CredentialCheckExecutor.Holder() {
+
+        @Override
+        protected CredentialCheckExecutor create() {
+            return getCredentialCheckExecutor();
+        }
+    };
+
     /**
      * This method checks the supplied credentials and returns true if they
      * are valid.
@@ -51,6 +62,54 @@ public abstract class TicketAuthenticator extends PluggableAuthenticator {
      */
     protected abstract SimplePrincipal loadPrincipal(AuthenticationManager manager, AuthenticationRequest request, String ticket);
 
+    /**
+     * Overwrite this to run checkTicket() and loadPrincipal() for requests
+     * carrying a ticket on a separate thread instead of blocking the request
+     * thread. The default returns null, so they are called on the request
+     * thread.
+     * It is called once, the executor returned is shut down when this
+     * authenticator is destroyed.
+     *
+     * @return The executor to use or null.
+     */
+    protected CredentialCheckExecutor getCredentialCheckExecutor() {
+        return null;
+    }
+
+    /**
+     * Shut down the executor returned by getCredentialCheckExecutor(), called
+     * by the container when this authenticator is destroyed.
+     */
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    public CompletionStage<Status> tryAuthenticateAsync(final AuthenticationManager manager,
+            final AuthenticationRequest request) {
+        CredentialCheckExecutor executor = this.executor.get();
+        final String ticket = request.getParameter(TICKET_PARAM);
+        if (executor == null || ticket == null) {
+            return super.tryAuthenticateAsync(manager, request);
+        }
+        return executor.check(this, request, new Callable<SimplePrincipal>() {
+
+            public SimplePrincipal call() {
+                return checkTicket(manager, request, ticket) ? loadPrincipal(manager, request, ticket) : null;
+            }
+        }, new CredentialCheckExecutor.Continuation<SimplePrincipal>() {
+
+            public Status apply(SimplePrincipal principal) {
+                if (principal == null) {
+                    return Status.Failure;
+                }
+                manager.register(request, principal);
+                return Status.Success;
+            }
+        });
+    }
+
     @Override
     public Status tryAuthenticate(AuthenticationManager manager, AuthenticationRequest request) {
         String ticket = request.getParameter(TICKET_PARAM);
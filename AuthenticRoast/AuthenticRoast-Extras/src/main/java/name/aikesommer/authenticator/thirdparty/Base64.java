@@ -1282,7 +1282,6 @@ public class Base64
 
                 }   // end try
                 catch( java.io.IOException e ) {
-                    e.printStackTrace();
                     // Just return originally-decoded bytes
                 }   // end catch
                 finally {
@@ -0,0 +1,148 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class CredentialCheckExecutorTest extends TestCase {
+
+    /**
+     * No more than maxConcurrency callbacks run at the same time, on virtual
+     * as well as on platform threads.
+     */
+    public void testConcurrencyIsLimited() throws Exception {
+        assertConcurrencyIsLimited(new CredentialCheckExecutor(3, 10, TimeUnit.SECONDS, true));
+        assertConcurrencyIsLimited(new CredentialCheckExecutor(3, 10, TimeUnit.SECONDS, false));
+    }
+
+    private void assertConcurrencyIsLimited(CredentialCheckExecutor executor) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                final int value = i;
+                results.add(executor.submit(new Callable<Integer>() {
+
+                    public Integer call() throws Exception {
+                        int now = running.incrementAndGet();
+                        while (true) {
+                            int max = maxRunning.get();
+                            if (now <= max || maxRunning.compareAndSet(max, now)) {
+                                break;
+                            }
+                        }
+                        Thread.sleep(10);
+                        running.decrementAndGet();
+                        return value;
+                    }
+                }).toCompletableFuture());
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(Integer.valueOf(i), results.get(i).get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue("ran " + maxRunning.get() + " at once", maxRunning.get() <= 3);
+    }
+
+    /**
+     * A callback that does not complete in time fails with a
+     * TimeoutException and is interrupted.
+     */
+    public void testTimeout() throws Exception {
+        CredentialCheckExecutor executor = new CredentialCheckExecutor(1, 50, TimeUnit.MILLISECONDS);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            CompletableFuture<Object> result = executor.submit(new Callable<Object>() {
+
+                public Object call() throws Exception {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ex) {
+                        interrupted.countDown();
+                    }
+                    return null;
+                }
+            }).toCompletableFuture();
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("callback did not time out");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof TimeoutException);
+            }
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * An authenticator asks for its executor once and shuts it down when it
+     * is destroyed.
+     */
+    public void testAuthenticatorOwnsItsExecutor() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final CredentialCheckExecutor executor = new CredentialCheckExecutor(1, 10, TimeUnit.SECONDS);
+        CredentialCheckExecutor.Holder holder = new CredentialCheckExecutor.Holder() {
+
+            @Override
+            protected CredentialCheckExecutor create() {
+                created.incrementAndGet();
+                return executor;
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            assertSame(executor, holder.get());
+        }
+        assertEquals(1, created.get());
+
+        holder.shutdown();
+
+        assertNull(holder.get());
+        try {
+            executor.submit(new Callable<Object>() {
+
+                public Object call() {
+                    return null;
+                }
+            }).toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("executor still running after shutdown");
+        } catch (ExecutionException expected) {
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging handler that hands records over to a background thread, which
+ * then publishes them to the target handler. Request threads never wait for
+ * slow log output, if the ring buffer is full records are dropped and
+ * counted instead.
+ * To use it from a logging.properties file, set it as handler for
+ * <code>name.aikesommer.authenticator</code> and configure
+ * <code>name.aikesommer.authenticator.AsyncLogHandler.target</code> (the
+ * class name of the target handler, ConsoleHandler by default) and
+ * <code>name.aikesommer.authenticator.AsyncLogHandler.capacity</code>.
+ *
+ * @author Ratcash
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final Handler target;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<LogRecord> records;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private long tail = 0;
+
+    private volatile boolean closed = false;
+
+    private final Thread worker;
+
+    /**
+     * Create a handler configured through the LogManager.
+     */
+    public AsyncLogHandler() {
+        this(configuredTarget(), configuredCapacity());
+    }
+
+    /**
+     * Create a handler publishing to target.
+     *
+     * @param target The handler doing the actual output.
+     * @param capacity The number of records that can be buffered, rounded
+     *                 up to the next power of two.
+     */
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.records = new AtomicReferenceArray<LogRecord>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.worker = new Thread(new Runnable() {
+
+            public void run() {
+                drainLoop();
+            }
+        }, "roast-log");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        // the caller has to be determined on this thread
+        record.getSourceClassName();
+
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (head.compareAndSet(position, position + 1)) {
+                    records.set(index, record);
+                    sequences.set(index, position + 1);
+                    LockSupport.unpark(worker);
+                    return;
+                }
+                position = head.get();
+            } else if (sequence < position) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * @return The number of records dropped, because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        closed = true;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    private void drainLoop() {
+        long reportedDropped = 0;
+        while (true) {
+            LogRecord record = poll();
+            if (record != null) {
+                publishToTarget(record);
+                continue;
+            }
+
+            long currentDropped = dropped.get();
+            if (currentDropped != reportedDropped) {
+                publishToTarget(new LogRecord(Level.WARNING, (currentDropped - reportedDropped)
+                        + " log records dropped, because the buffer was full"));
+                reportedDropped = currentDropped;
+            }
+            if (closed) {
+                target.flush();
+                return;
+            }
+            LockSupport.parkNanos(this, 10000000L);
+        }
+    }
+
+    private LogRecord poll() {
+        int index = (int) tail & mask;
+        if (sequences.get(index) != tail + 1) {
+            return null;
+        }
+        LogRecord record = records.getAndSet(index, null);
+        sequences.set(index, tail + mask + 1);
+        tail++;
+        return record;
+    }
+
+    private void publishToTarget(LogRecord record) {
+        try {
+            target.publish(record);
+        } catch (RuntimeException ex) {
+            reportError(null, ex, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private static Handler configuredTarget() {
+        String name = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".target");
+        if (name == null) {
+            return new java.util.logging.ConsoleHandler();
+        }
+        try {
+            return ClassLoader.getSystemClassLoader().loadClass(name).asSubclass(Handler.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("unable to create log handler " + name, ex);
+        }
+    }
+
+    private static int configuredCapacity() {
+        String capacity = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + ".capacity");
+        return capacity == null ? DEFAULT_CAPACITY : Integer.parseInt(capacity.trim());
+    }
+}
@@ -24,7 +24,18 @@
 package name.aikesommer.authenticator;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.util.AnnotationLiteral;
 import javax.security.auth.Subject;
@@ -38,6 +49,7 @@ import javax.security.auth.message.MessagePolicy;
 import javax.security.auth.message.callback.CallerPrincipalCallback;
 import javax.security.auth.message.callback.GroupPrincipalCallback;
 import javax.security.auth.message.module.ServerAuthModule;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -48,12 +60,41 @@ import name.aikesommer.authenticator.AuthenticationRequest.Status;
 /**
  * This is the main class called by the container. You probably dont wanna
  * call this class directly.
+ * Instances are thread-safe once initialized. All state belonging to a
+ * single request is kept in the MessageInfo, so the container can use one
+ * instance for all requests of an application.
  * 
  * @author Aike J Sommer
  */
 public abstract class AuthModule extends AuthenticationManagerBase implements ServerAuthModule,
         PluggableAuthenticator.AuthenticationManager {
 
+    /**
+     * Module option for the maximum number of idle Dependent-scoped
+     * authenticators kept for reuse.
+     */
+    public static final String POOL_SIZE_OPTION = "roast.authenticator.pool-size";
+
+    /**
+     * Module option to enable the stateless mode. The principal and the
+     * state of the authentication are kept in signed cookies instead of the
+     * session, using the keys given in {@link TokenCodec#KEYS_OPTION}.
+     */
+    public static final String STATELESS_OPTION = "roast.stateless";
+
+    /**
+     * Module option holding the class name of a PrincipalStore.Factory
+     * choosing the PrincipalStore for every request. Where it returns null,
+     * the stateless or the default store is used.
+     */
+    public static final String PRINCIPAL_STORE_FACTORY_OPTION = "roast.principal-store.factory";
+
+    /**
+     * Module option holding the time in seconds to wait for an asynchronous
+     * authentication if the request cannot be suspended, 0 to wait forever.
+     */
+    public static final String ASYNC_TIMEOUT_OPTION = "roast.authenticator.async-timeout";
+
     private CallbackHandler handler;
 
     private Map options;
@@ -62,7 +103,27 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
 
     private MessagePolicy requestPolicy;
 
-    private boolean success;
+    private static final String SUCCESS_NOTE = AuthModule.class.getName() + ".SUCCESS";
+
+    private static final String ASYNC_NOTE = AuthModule.class.getName() + ".ASYNC";
+
+    private static final String PRINCIPAL_STORE_NOTE = AuthModule.class.getName() + ".PRINCIPAL_STORE";
+
+    private TokenCodec codec;
+
+    private int tokenTtl = TokenPrincipalStore.DEFAULT_TTL;
+
+    private int poolSize = 2 * Runtime.getRuntime().availableProcessors();
+
+    private long asyncTimeout = 30 * 1000L;
+
+    private final AtomicReference<Resolution> resolution = new AtomicReference<Resolution>();
+
+    /**
+     * Idle request-objects, recycled for subsequent requests.
+     */
+    private volatile BoundedPool<AuthenticationRequestImpl.JSR196> requests =
+            new BoundedPool<AuthenticationRequestImpl.JSR196>(poolSize);
 
 	@Override
     public void initialize(MessagePolicy requestPolicy, MessagePolicy responsePolicy,
@@ -71,7 +132,27 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
         this.responsePolicy = responsePolicy;
         this.handler = handler;
         this.options = options;
-        this.success = false;
+        if (options != null && options.get(POOL_SIZE_OPTION) != null) {
+            this.poolSize = Integer.parseInt(options.get(POOL_SIZE_OPTION).toString());
+        }
+        if (options != null && options.get(ASYNC_TIMEOUT_OPTION) != null) {
+            this.asyncTimeout = Long.parseLong(options.get(ASYNC_TIMEOUT_OPTION).toString()) * 1000;
+        }
+        this.requests = new BoundedPool<AuthenticationRequestImpl.JSR196>(poolSize);
+        setRequestHandler(RequestHandler.fromOptions(options));
+        if (options != null && options.get(PRINCIPAL_STORE_FACTORY_OPTION) != null) {
+            setPrincipalStoreFactory(
+                    createPrincipalStoreFactory(options.get(PRINCIPAL_STORE_FACTORY_OPTION).toString()));
+        }
+        if (options != null && Boolean.parseBoolean(String.valueOf(options.get(STATELESS_OPTION)))) {
+            this.codec = TokenCodec.fromOptions(options);
+            if (codec == null) {
+                throw new AuthException("stateless mode needs " + TokenCodec.KEYS_OPTION);
+            }
+            if (options.get(TokenPrincipalStore.TTL_OPTION) != null) {
+                this.tokenTtl = Integer.parseInt(options.get(TokenPrincipalStore.TTL_OPTION).toString());
+            }
+        }
     }
 
 	@Override
@@ -80,16 +161,176 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
     }
 	
 	/**
-	 * Retrieves the BeanManager associated with the current ServletContext and then a reference to an @ApplicationScoped
-	 * PluggableAuthenticator.
+	 * Retrieves the BeanManager associated with the current ServletContext and then a reference to the
+	 * PluggableAuthenticator qualified with @Primary.
+	 * The result is cached if {@link #isReusable(PluggableAuthenticator)} allows it, so this is usually
+	 * called only once per application. If this is overridden, it is always used and CDI is not asked
+	 * at all. Otherwise this module does the lookup itself, so the instances can be released after
+	 * the request, and Dependent-scoped authenticators are pooled.
 	 * @return 
 	 */
-	protected abstract PluggableAuthenticator getPrimaryAuthenticator();
-//	{
+	protected PluggableAuthenticator getPrimaryAuthenticator() {
 //		return CDIHelper.getInstance(PluggableAuthenticator.class, ApplicationScoped.class, new AnnotationLiteral<Primary>() {});
-//		return CDIHelper.getReferenceOrNull(PluggableAuthenticator.class, new AnnotationLiteral<Primary>() {});
-//	}
+		/** this module acquires and releases the bean itself, unless this is overridden */
+		CDIHelper.BeanInstance<PluggableAuthenticator> instance =
+				CDIHelper.getReferenceOrNull(PluggableAuthenticator.class, CDIHelper.PRIMARY);
+		return instance == null ? null : instance.get();
+	}
+
+	/**
+	 * Check whether the authenticator returned by {@link #getPrimaryAuthenticator()}
+	 * may be kept and used for subsequent requests. The default implementation
+	 * allows this for normal-scoped and stateless beans; an overridden
+	 * {@link #getPrimaryAuthenticator()} is asked again for every request.
+	 * 
+	 * @param authenticator The authenticator that has just been resolved.
+	 * @return true if the authenticator can be cached.
+	 */
+	protected boolean isReusable(PluggableAuthenticator authenticator) {
+		return !overridesPrimaryAuthenticator()
+				&& CDIHelper.isReusable(PluggableAuthenticator.class, CDIHelper.PRIMARY);
+	}
+
+	/**
+	 * Get the authenticator for the current request. Reusable authenticators
+	 * are resolved once per application and container generation, 
+	 * Dependent-scoped ones are taken from a bounded pool and anything else
+	 * is resolved for every request.
+	 * The result has to be passed to {@link #releaseAuthenticator(CDIHelper.BeanInstance)}
+	 * once the request has been processed.
+	 * 
+	 * @return The authenticator to use or null if there is none.
+	 */
+	protected CDIHelper.BeanInstance<PluggableAuthenticator> acquireAuthenticator() {
+		Resolution resolution = currentResolution();
+		if (resolution == null) {
+			return null;
+		}
+		if (resolution.reusable != null) {
+			return resolution.reusable;
+		}
+		if (resolution.pool != null) {
+			CDIHelper.BeanInstance<PluggableAuthenticator> instance = resolution.pool.poll();
+			if (instance == null) {
+				instance = CDIHelper.acquire(PluggableAuthenticator.class, CDIHelper.PRIMARY);
+			}
+			return instance;
+		}
+		return resolveAuthenticator();
+	}
+
+	/**
+	 * Get the authenticator from an overridden {@link #getPrimaryAuthenticator()}
+	 * or from CDI, which has to be released.
+	 */
+	private CDIHelper.BeanInstance<PluggableAuthenticator> resolveAuthenticator() {
+		if (!overridesPrimaryAuthenticator()) {
+			return CDIHelper.getReferenceOrNull(PluggableAuthenticator.class, CDIHelper.PRIMARY);
+		}
+		PluggableAuthenticator authenticator = getPrimaryAuthenticator();
+		return authenticator == null ? null : CDIHelper.BeanInstance.of(authenticator);
+	}
+
+	/**
+	 * Give back an authenticator obtained from {@link #acquireAuthenticator()}.
+	 * Dependent-scoped authenticators are returned to the pool or destroyed if
+	 * there is no pool or it is full or outdated.
+	 * 
+	 * @param instance The authenticator to release.
+	 */
+	protected void releaseAuthenticator(CDIHelper.BeanInstance<PluggableAuthenticator> instance) {
+		if (!instance.isDependent()) {
+			return;
+		}
+		Resolution resolution = this.resolution.get();
+		if (resolution == null || resolution.pool == null || !resolution.isCurrent()
+				|| !resolution.pool.offer(instance)) {
+			instance.release();
+		}
+	}
+
+	private Resolution currentResolution() {
+		for (;;) {
+			Resolution resolution = this.resolution.get();
+			if (resolution != null && resolution.isCurrent()) {
+				return resolution;
+			}
+
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			long generation = CDIHelper.getGeneration();
+			Resolution created;
+			if (!overridesPrimaryAuthenticator()
+					&& CDIHelper.isDependent(PluggableAuthenticator.class, CDIHelper.PRIMARY)) {
+				created = new Resolution(loader, generation, null, 
+						new BoundedPool<CDIHelper.BeanInstance<PluggableAuthenticator>>(poolSize), null);
+				log.fine("primary authenticator is Dependent-scoped, pooling instances");
+			} else {
+				CDIHelper.BeanInstance<PluggableAuthenticator> instance = resolveAuthenticator();
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("resolved primary authenticator: " + (instance == null ? null : instance.get()));
+				}
+				if (instance == null) {
+					return null;
+				}
+				if (isReusable(instance.get())) {
+					created = new Resolution(loader, generation, CDIHelper.BeanInstance.of(instance.get()), null,
+							instance);
+				} else {
+					instance.release();
+					created = new Resolution(loader, generation, null, null, null);
+				}
+			}
+
+			/** only the thread actually replacing a resolution may release it */
+			if (this.resolution.compareAndSet(resolution, created)) {
+				release(resolution);
+				return created;
+			}
+			release(created);
+		}
+	}
+
+	/**
+	 * Destroy the instances held by a resolution that is no longer in use.
+	 */
+	private void release(Resolution resolution) {
+		if (resolution == null) {
+			return;
+		}
+		if (resolution.held != null) {
+			try {
+				resolution.held.release();
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "unable to destroy reused authenticator", ex);
+			}
+		}
+		if (resolution.pool != null) {
+			for (CDIHelper.BeanInstance<PluggableAuthenticator> instance : resolution.pool.drain()) {
+				try {
+					instance.release();
+				} catch (RuntimeException ex) {
+					log.log(Level.WARNING, "unable to destroy pooled authenticator", ex);
+				}
+			}
+		}
+	}
 	
+	/**
+	 * Check whether a subclass provides its own authenticator by overriding
+	 * {@link #getPrimaryAuthenticator()}, in which case CDI is not used.
+	 */
+	private boolean overridesPrimaryAuthenticator() {
+		for (Class<?> c = getClass(); c != AuthModule.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("getPrimaryAuthenticator");
+				return true;
+			} catch (NoSuchMethodException ex) {
+				/** not declared here, try the superclass */
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public AuthStatus validateRequest(MessageInfo info, Subject clientSubject, Subject serviceSubject) throws AuthException {
 		
@@ -100,9 +341,8 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
 //		CreationalContext ctx = beanManager.createCreationalContext(bean);
 //		PluggableAuthenticator authenticator = (PluggableAuthenticator) beanManager.getReference(bean, PluggableAuthenticator.class, ctx);
 		
-		System.out.println("Retrieving main CDI bean.");
-		PluggableAuthenticator authenticator = getPrimaryAuthenticator();
-		System.out.println("Retrieved: " + authenticator);
+		info.getMap().remove(SUCCESS_NOTE);
+		final CDIHelper.BeanInstance<PluggableAuthenticator> instance = acquireAuthenticator();
 		
         /**
          * Find the authenticator for this application.
@@ -117,8 +357,23 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
 		
 		AuthStatus result = AuthStatus.FAILURE;
 		// Reject requests, if there's no authenticator defined
-		if(authenticator != null) {
-			result = requestValidator(info, clientSubject, serviceSubject, authenticator);
+		if(instance != null) {
+			try {
+				result = requestValidator(info, clientSubject, serviceSubject, instance.get());
+			} finally {
+				AsyncAuthentication async = (AsyncAuthentication) info.getMap().remove(ASYNC_NOTE);
+				if (async != null) {
+					// the authenticator is still in use until the request is resumed
+					async.whenDone(new Runnable() {
+
+						public void run() {
+							releaseAuthenticator(instance);
+						}
+					});
+				} else {
+					releaseAuthenticator(instance);
+				}
+			}
 		}
 		
 //		if(authInstance != null) {
@@ -133,20 +388,41 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
 	
 	
     protected AuthStatus requestValidator(MessageInfo info, Subject clientSubject,
-            Subject serviceSubject, PluggableAuthenticator authenticator) throws AuthException {
+            Subject serviceSubject, final PluggableAuthenticator authenticator) throws AuthException {
 		
         HttpServletRequest request = (HttpServletRequest) info.getRequestMessage();
         HttpServletResponse response = (HttpServletResponse) info.getResponseMessage();
 
 		boolean mandatory = true;
 //		mandatory = requestPolicy.isMandatory();
-        JSR196Request authReq = new AuthenticationRequestImpl.JSR196(request, response,
-                clientSubject, mandatory);
+        final AuthenticationRequestImpl.JSR196 authReq = acquireRequest(request, response, clientSubject, mandatory);
 
         boolean finished = false;
         try {
             authenticator.begin(this, authReq);
 
+            /**
+             * This is the request being resumed after an asynchronous 
+             * authentication has completed, so we establish the principals
+             * registered in the meantime and carry on with its result. A
+             * null result asks for the authenticator to be called again.
+             */
+            AsyncAuthentication async = (AsyncAuthentication) request.getAttribute(ASYNC_NOTE);
+            if (async != null && async.isDone()) {
+                request.removeAttribute(ASYNC_NOTE);
+                for (SimplePrincipal principal : async.principals) {
+                    register(authReq, principal);
+                }
+                if (async.error != null) {
+                    throw async.error instanceof Exception ? (Exception) async.error
+                            : new RuntimeException(async.error);
+                }
+                if (async.status == null) {
+                    return authenticate(info, authReq, authenticator, async.tried);
+                }
+                return processStatus(info, authReq, authenticator, async.tried, async.status);
+            }
+
             /**
              * Check whether we already authenticated the user. In that case we
              * saved our Principal in the session and can just load it from 
@@ -154,16 +430,16 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
              * We will call manage() in our authenticator to be able to logout
              * and such things.
              */
-            SimplePrincipal simplePrincipal = getPrincipalStore().fetch();
+            SimplePrincipal simplePrincipal = getPrincipalStore(authReq).fetch();
             if (simplePrincipal != null) {
                 ManageAction action = authenticator.manage(this, authReq);
                 switch (action) {
                     case None:
                         createPrincipal(simplePrincipal, clientSubject);
-                        success = true;
+                        setSuccess(info);
                         return AuthStatus.SUCCESS;
                     case Clear:
-                        getPrincipalStore().invalidate();
+                        getPrincipalStore(authReq).invalidate();
                         return AuthStatus.SEND_CONTINUE;
                 }
             }
@@ -173,50 +449,257 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
              * that now. The actual process of authentication will be done 
              * by the authenticator class in our web-app.
              */
-            Status status = authenticator.tryAuthenticate(this, authReq);
-
-            switch (status) {
-                case Success:
-                    success = true;
-                    return AuthStatus.SUCCESS;
-                case None:
-                    if (!mandatory) {
-                        success = true;
-                        return AuthStatus.SUCCESS;
-                    }
-                    status = authenticator.authenticate(this, authReq);
-                    if (status == Status.Success) {
-                        success = true;
-                        return AuthStatus.SUCCESS;
-                    }
-                case Continue:
-                case Failure:
-                    response.setStatus(response.SC_UNAUTHORIZED);
-                    return AuthStatus.SEND_CONTINUE;
-                default:
-                    throw new IllegalArgumentException("dont know how to handle " + status);
-            }
+            return authenticate(info, authReq, authenticator, true);
         } catch (Exception ex) {
             finished = true;
             authenticator.abort(this, authReq, ex);
-            ex.printStackTrace();
+            log.log(Level.SEVERE, "unexpected error during authentication", ex);
             try {
                 response.sendError(response.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
             } catch (IOException ex1) {
-                ex1.printStackTrace();
+                log.log(Level.FINE, "unable to send error", ex1);
             }
 
             return AuthStatus.FAILURE;
         } finally {
-            if (!finished) {
-                authenticator.finish(this, authReq);
+            final AsyncAuthentication async = authReq.pending;
+            if (async == null) {
+                if (!finished) {
+                    authenticator.finish(this, authReq);
+                }
+                flush(authReq);
+                releaseRequest(authReq);
+            } else {
+                /**
+                 * The authenticator still uses the request-object, so we
+                 * finish it once the stage completes. If we stopped waiting
+                 * for it, the request is gone by then and we only recycle
+                 * the object.
+                 */
+                final boolean finish = !finished;
+                async.whenDone(new Runnable() {
+
+                    public void run() {
+                        if (!async.isAbandoned()) {
+                            if (finish) {
+                                authenticator.finish(AuthModule.this, authReq);
+                            }
+                            flush(authReq);
+                        }
+                        releaseRequest(authReq);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Get a request-object for the current exchange, recycling an idle one
+     * if possible.
+     */
+    private AuthenticationRequestImpl.JSR196 acquireRequest(HttpServletRequest request,
+            HttpServletResponse response, Subject clientSubject, boolean mandatory) {
+        Map<String, Object> authenticationMap = codec == null ? null
+                : new TokenAttributeMap(request, response, codec, tokenTtl);
+        AuthenticationRequestImpl.JSR196 authReq = requests.poll();
+        if (authReq == null) {
+            return authenticationMap == null
+                    ? new AuthenticationRequestImpl.JSR196(request, response, clientSubject, mandatory)
+                    : new AuthenticationRequestImpl.JSR196(request, response, clientSubject, mandatory,
+                            authenticationMap);
+        }
+        authReq.reset(request, response, clientSubject, mandatory, authenticationMap);
+        return authReq;
+    }
+
+    /**
+     * Return a request-object once the exchange is done with it. This must
+     * not be called while a stage returned by the authenticator is pending,
+     * as the authenticator still uses the object then.
+     */
+    private void releaseRequest(AuthenticationRequestImpl.JSR196 authReq) {
+        authReq.clear();
+        requests.offer(authReq);
+    }
+
+    /**
+     * Call tryAuthenticateAsync or authenticateAsync and carry on with its
+     * result once the returned stage completes.
+     * If it has not completed yet and the request supports it, the request
+     * is suspended instead and dispatched again once the stage completes.
+     * 
+     * @param tried Whether to call tryAuthenticateAsync.
+     */
+    private AuthStatus authenticate(MessageInfo info, AuthenticationRequestImpl.JSR196 authReq,
+            PluggableAuthenticator authenticator, boolean tried) throws Exception {
+        HttpServletRequest request = authReq.getHttpServletRequest();
+        final AsyncAuthentication async = new AsyncAuthentication(tried);
+        request.setAttribute(ASYNC_NOTE, async);
+        authReq.pending = async;
+
+        CompletableFuture<Status> future;
+        try {
+            future = (tried ? authenticator.tryAuthenticateAsync(this, authReq)
+                    : authenticator.authenticateAsync(this, authReq)).toCompletableFuture();
+        } catch (Exception ex) {
+            request.removeAttribute(ASYNC_NOTE);
+            authReq.pending = null;
+            throw ex;
+        }
+        future.whenComplete(new BiConsumer<Status, Throwable>() {
+
+            public void accept(Status status, Throwable error) {
+                async.complete(status, error);
             }
+        });
+
+        boolean completed = future.isDone();
+        if (!completed && request.isAsyncSupported()) {
+            final AsyncContext asyncContext = request.isAsyncStarted() ? request.getAsyncContext()
+                    : request.startAsync(request, authReq.getHttpServletResponse());
+            async.resumeWith(new Runnable() {
+
+                public void run() {
+                    try {
+                        asyncContext.dispatch();
+                    } catch (IllegalStateException ex) {
+                        log.log(Level.FINE, "request completed before the authentication", ex);
+                    }
+                }
+            });
+            setAsync(info, async);
+            return AuthStatus.SEND_CONTINUE;
+        }
+
+        Status status = null;
+        Exception error = null;
+        try {
+            status = asyncTimeout > 0 ? future.get(asyncTimeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException ex) {
+            abandon(info, request, async);
+            throw ex;
+        } catch (InterruptedException ex) {
+            abandon(info, request, async);
+            Thread.currentThread().interrupt();
+            throw ex;
+        } catch (ExecutionException ex) {
+            error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+        request.removeAttribute(ASYNC_NOTE);
+        authReq.pending = null;
+        for (SimplePrincipal principal : async.principals) {
+            register(authReq, principal);
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (status == null && !completed) {
+            return authenticate(info, authReq, authenticator, tried);
+        }
+        return processStatus(info, authReq, authenticator, tried, status);
+    }
+
+    /**
+     * Stop waiting for async. Whatever the authenticator does until its
+     * stage completes is ignored, and the request-object as well as the
+     * authenticator are only released then.
+     */
+    private void abandon(MessageInfo info, HttpServletRequest request, AsyncAuthentication async) {
+        async.abandon();
+        request.removeAttribute(ASYNC_NOTE);
+        setAsync(info, async);
+    }
+
+    private AuthStatus processStatus(MessageInfo info, AuthenticationRequestImpl.JSR196 authReq,
+            PluggableAuthenticator authenticator, boolean tried, Status status) throws Exception {
+        switch (status == null ? Status.None : status) {
+            case Success:
+                replay(info, authReq);
+                setSuccess(info);
+                return AuthStatus.SUCCESS;
+            case None:
+                if (tried) {
+                    if (!authReq.isMandatory()) {
+                        setSuccess(info);
+                        return AuthStatus.SUCCESS;
+                    }
+                    return authenticate(info, authReq, authenticator, false);
+                }
+            case Continue:
+            case Failure:
+                authReq.getHttpServletResponse().setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return AuthStatus.SEND_CONTINUE;
+            default:
+                throw new IllegalArgumentException("dont know how to handle " + status);
+        }
+    }
+
+    private PrincipalStore.Factory createPrincipalStoreFactory(String name) throws AuthException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            return Class.forName(name, true, loader == null ? AuthModule.class.getClassLoader() : loader)
+                    .asSubclass(PrincipalStore.Factory.class).getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            AuthException authException = new AuthException("unable to create PrincipalStore.Factory " + name);
+            authException.initCause(ex);
+            throw authException;
+        }
+    }
+
+    /**
+     * In stateless mode a TokenPrincipalStore is used for every request,
+     * otherwise the store from {@link #getPrincipalStore()}.
+     */
+    @Override
+    protected PrincipalStore getDefaultPrincipalStore(AuthenticationRequest request) {
+        if (codec == null) {
+            return super.getDefaultPrincipalStore(request);
         }
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        PrincipalStore store = (PrincipalStore) httpRequest.getAttribute(PRINCIPAL_STORE_NOTE);
+        if (store == null) {
+            store = new TokenPrincipalStore(httpRequest, request.getHttpServletResponse(), codec, tokenTtl);
+            httpRequest.setAttribute(PRINCIPAL_STORE_NOTE, store);
+        }
+        return store;
     }
 
 	@Override
     public AuthStatus secureResponse(MessageInfo info, Subject serviceSubject) throws AuthException {
-        return success ? AuthStatus.SEND_SUCCESS : AuthStatus.SEND_CONTINUE;
+        if (info.getRequestMessage() instanceof ReplayedRequest) {
+            ((ReplayedRequest) info.getRequestMessage()).release();
+        }
+        return Boolean.TRUE.equals(info.getMap().get(SUCCESS_NOTE)) ? AuthStatus.SEND_SUCCESS
+                : AuthStatus.SEND_CONTINUE;
+    }
+
+    /**
+     * If a saved request with a body has been restored, pass on a request
+     * replaying it to the application.
+     */
+    private static void replay(MessageInfo info, JSR196Request authReq) {
+        ReplayedRequest replayed = RequestHandler.getReplayedRequest(authReq.getHttpServletRequest());
+        if (replayed != null) {
+            info.setRequestMessage(replayed);
+        }
+    }
+
+    /**
+     * Remember that validateRequest succeeded for this message, so that
+     * secureResponse can answer accordingly.
+     */
+    @SuppressWarnings("unchecked")
+    private static void setSuccess(MessageInfo info) {
+        info.getMap().put(SUCCESS_NOTE, Boolean.TRUE);
+    }
+
+    /**
+     * Remember the pending authentication of this message, so that
+     * validateRequest can pick it up once the request is dispatched again.
+     */
+    @SuppressWarnings("unchecked")
+    private static void setAsync(MessageInfo info, AsyncAuthentication async) {
+        info.getMap().put(ASYNC_NOTE, async);
     }
 
 	@Override
@@ -242,8 +725,171 @@ public abstract class AuthModule extends AuthenticationManagerBase implements Se
         handler.handle(new Callback[]{callerCallback, groupCallback});
     }
 
+    /**
+     * How the authenticator is obtained for the current application.
+     * Either reusable or pool is set, if none of them is the authenticator
+     * has to be resolved for every request.
+     */
+    private static final class Resolution {
+
+        private final ClassLoader loader;
+        private final long generation;
+        private final CDIHelper.BeanInstance<PluggableAuthenticator> reusable;
+        private final BoundedPool<CDIHelper.BeanInstance<PluggableAuthenticator>> pool;
+        /**
+         * The instance behind reusable, released once this is replaced.
+         */
+        private final CDIHelper.BeanInstance<PluggableAuthenticator> held;
+
+        Resolution(ClassLoader loader, long generation,
+                CDIHelper.BeanInstance<PluggableAuthenticator> reusable,
+                BoundedPool<CDIHelper.BeanInstance<PluggableAuthenticator>> pool,
+                CDIHelper.BeanInstance<PluggableAuthenticator> held) {
+            this.loader = loader;
+            this.generation = generation;
+            this.reusable = reusable;
+            this.pool = pool;
+            this.held = held;
+        }
+
+        boolean isCurrent() {
+            return loader == Thread.currentThread().getContextClassLoader()
+                    && generation == CDIHelper.getGeneration();
+        }
+    }
+
+    /**
+     * The state of an authentication waiting for the stage returned by the
+     * authenticator to complete.
+     * It is used internally only.
+     */
+    static final class AsyncAuthentication {
+
+        private final boolean tried;
+        private final Thread owner = Thread.currentThread();
+        private final List<SimplePrincipal> principals = new CopyOnWriteArrayList<SimplePrincipal>();
+        private final List<Runnable> callbacks = new ArrayList<Runnable>();
+        private Runnable resume;
+        private Status status;
+        private Throwable error;
+        private boolean done;
+        private boolean abandoned;
+
+        AsyncAuthentication(boolean tried) {
+            this.tried = tried;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Stop waiting for the stage, nothing it does will be applied.
+         */
+        synchronized void abandon() {
+            abandoned = true;
+        }
+
+        /**
+         * Keep principal to be registered once the stage has completed.
+         *
+         * @return false if it is too late for that.
+         */
+        synchronized boolean accept(SimplePrincipal principal) {
+            if (done || abandoned) {
+                return false;
+            }
+            principals.add(principal);
+            return true;
+        }
+
+        void complete(Status status, Throwable error) {
+            List<Runnable> run;
+            Runnable then;
+            synchronized (this) {
+                this.status = status;
+                this.error = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                this.done = true;
+                run = new ArrayList<Runnable>(callbacks);
+                callbacks.clear();
+                then = abandoned ? null : resume;
+            }
+            for (Runnable callback : run) {
+                run(callback);
+            }
+            if (then != null) {
+                run(then);
+            }
+        }
+
+        /**
+         * Run callback once the stage has completed.
+         */
+        void whenDone(Runnable callback) {
+            synchronized (this) {
+                if (!done) {
+                    callbacks.add(callback);
+                    return;
+                }
+            }
+            run(callback);
+        }
+
+        /**
+         * Run callback to resume the request once the stage has completed,
+         * after all others.
+         */
+        void resumeWith(Runnable callback) {
+            synchronized (this) {
+                if (!done) {
+                    resume = callback;
+                    return;
+                }
+            }
+            run(callback);
+        }
+
+        private static void run(Runnable callback) {
+            try {
+                callback.run();
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "unexpected error completing an authentication", ex);
+            }
+        }
+    }
+
+    /**
+     * Find the asynchronous authentication request is part of.
+     */
+    private static AsyncAuthentication pending(AuthenticationRequest request) {
+        while (request instanceof WrappedRequest.JSR196) {
+            request = ((WrappedRequest.JSR196) request).getRequest();
+        }
+        return request instanceof AuthenticationRequestImpl.JSR196
+                ? ((AuthenticationRequestImpl.JSR196) request).pending : null;
+    }
+
     @Override
     public void register(AuthenticationRequest request, SimplePrincipal simplePrincipal) {
+        AsyncAuthentication async = pending(request);
+        if (async != null && async.owner != Thread.currentThread()) {
+            /**
+             * We are called from an asynchronous authentication, so we cannot
+             * use the callbacks of the container now and have to wait for
+             * the request to be resumed or the stage to complete. Once it
+             * has completed or we stopped waiting, the request may be gone.
+             */
+            if (!async.accept(simplePrincipal) && log.isLoggable(Level.FINE)) {
+                log.fine("ignoring principal registered after the authentication completed: "
+                        + simplePrincipal.getName());
+            }
+            return;
+        }
         try {
             createPrincipal(simplePrincipal, ((JSR196Request) request).getClientSubject());
         } catch (Exception ex) {
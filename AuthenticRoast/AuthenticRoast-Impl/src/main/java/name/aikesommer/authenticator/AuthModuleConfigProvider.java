@@ -0,0 +1,123 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.message.AuthException;
+import javax.security.auth.message.config.AuthConfigFactory;
+import javax.security.auth.message.config.AuthConfigProvider;
+import javax.security.auth.message.config.ClientAuthConfig;
+import javax.security.auth.message.config.ServerAuthConfig;
+import javax.security.auth.message.module.ServerAuthModule;
+
+/**
+ * The AuthConfigProvider handing out our AuthModule to the container.
+ * There is one ServerAuthConfig per message-layer and application-context,
+ * each of them holding a single, initialized module that is used for all
+ * requests. Usually this is registered by {@link AuthModuleListener}.
+ *
+ * @author Ratcash
+ */
+public class AuthModuleConfigProvider implements AuthConfigProvider {
+
+    /**
+     * Property holding the name of the ServerAuthModule class to use, when
+     * the provider is created by the AuthConfigFactory.
+     */
+    public static final String MODULE_CLASS_PROPERTY = "roast.auth-module.class";
+
+    private final Class<? extends ServerAuthModule> moduleClass;
+
+    private final Map<String, String> options;
+
+    private final ConcurrentMap<String, AuthModuleServerAuthConfig> configs =
+            new ConcurrentHashMap<String, AuthModuleServerAuthConfig>();
+
+    /**
+     * Create a provider for the given module-class. All options will be passed
+     * on to the module when it is initialized.
+     */
+    public AuthModuleConfigProvider(Class<? extends ServerAuthModule> moduleClass,
+            Map<String, String> options) {
+        this.moduleClass = moduleClass;
+        this.options = Collections.unmodifiableMap(new HashMap<String, String>(options));
+    }
+
+    /**
+     * The constructor used by the AuthConfigFactory when the provider is
+     * configured persistently. The module-class is taken from the property
+     * <code>roast.auth-module.class</code>, all properties are passed on as
+     * module options.
+     * The provider does not register itself, as it would do so for all
+     * applications; whoever creates it registers it for the right one,
+     * usually {@link AuthModuleListener}. Without properties, no module-class
+     * is known and the provider refuses to hand out configs.
+     */
+    public AuthModuleConfigProvider(Map<String, String> properties, AuthConfigFactory factory)
+            throws ClassNotFoundException {
+        this(moduleClass(properties), properties == null ? Collections.<String, String>emptyMap() : properties);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends ServerAuthModule> moduleClass(Map<String, String> properties)
+            throws ClassNotFoundException {
+        String name = properties == null ? null : properties.get(MODULE_CLASS_PROPERTY);
+        if (name == null) {
+            return null;
+        }
+        return (Class<? extends ServerAuthModule>) Class.forName(name, true,
+                Thread.currentThread().getContextClassLoader());
+    }
+
+    public ClientAuthConfig getClientAuthConfig(String layer, String appContext,
+            CallbackHandler handler) throws AuthException {
+        return null;
+    }
+
+    public ServerAuthConfig getServerAuthConfig(String layer, String appContext,
+            CallbackHandler handler) throws AuthException {
+        if (moduleClass == null) {
+            throw new AuthException("property " + MODULE_CLASS_PROPERTY + " is missing");
+        }
+        String key = layer + " " + appContext;
+        AuthModuleServerAuthConfig config = configs.get(key);
+        if (config == null) {
+            config = new AuthModuleServerAuthConfig(layer, appContext, handler, moduleClass, options);
+            AuthModuleServerAuthConfig existing = configs.putIfAbsent(key, config);
+            if (existing != null) {
+                config = existing;
+            }
+        }
+        return config;
+    }
+
+    public void refresh() {
+        configs.clear();
+    }
+}
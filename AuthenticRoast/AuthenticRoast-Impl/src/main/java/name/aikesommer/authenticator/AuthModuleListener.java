@@ -0,0 +1,105 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.security.auth.message.config.AuthConfigFactory;
+import javax.security.auth.message.module.ServerAuthModule;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Registers an {@link AuthModuleConfigProvider} for the application when it
+ * is started and removes it again when it is stopped.
+ * Add this as a listener to your web.xml and set the context-parameter
+ * <code>roast.auth-module.class</code> to the name of your AuthModule
+ * subclass. Any other context-parameter starting with <code>roast.</code>
+ * is passed on to the module as an option.
+ * It also starts and stops the replication of SuperSessions, if configured.
+ *
+ * @author Ratcash
+ */
+public class AuthModuleListener implements ServletContextListener {
+
+    private static final Logger log = Logger.getLogger(AuthModuleListener.class.getName());
+
+    private static final String LAYER = "HttpServlet";
+
+    private static final String REGISTRATION_NOTE = AuthModuleListener.class.getName() + ".REGISTRATION";
+
+    public void contextInitialized(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        String moduleClassName = context.getInitParameter(AuthModuleConfigProvider.MODULE_CLASS_PROPERTY);
+        if (moduleClassName == null) {
+            log.severe("context-parameter " + AuthModuleConfigProvider.MODULE_CLASS_PROPERTY
+                    + " is missing, not registering AuthenticRoast for " + context.getContextPath());
+            return;
+        }
+
+        Class<? extends ServerAuthModule> moduleClass;
+        try {
+            moduleClass = context.getClassLoader().loadClass(moduleClassName).asSubclass(ServerAuthModule.class);
+        } catch (Exception ex) {
+            log.log(Level.SEVERE, "unable to load " + moduleClassName, ex);
+            return;
+        }
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (Enumeration<String> it = context.getInitParameterNames(); it.hasMoreElements();) {
+            String name = it.nextElement();
+            if (name.startsWith("roast.")) {
+                options.put(name, context.getInitParameter(name));
+            }
+        }
+
+        String registration = AuthConfigFactory.getFactory().registerConfigProvider(
+                new AuthModuleConfigProvider(moduleClass, options), LAYER, appContext(context),
+                "AuthenticRoast");
+        context.setAttribute(REGISTRATION_NOTE, registration);
+        SuperSession.attach();
+    }
+
+    public void contextDestroyed(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        String registration = (String) context.getAttribute(REGISTRATION_NOTE);
+        if (registration != null) {
+            AuthConfigFactory.getFactory().removeRegistration(registration);
+            context.removeAttribute(REGISTRATION_NOTE);
+            SuperSession.detach();
+        }
+    }
+
+    /**
+     * The application-context identifier as defined by the servlet profile
+     * of JSR 196.
+     */
+    private static String appContext(ServletContext context) {
+        return context.getVirtualServerName() + " " + context.getContextPath();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.message.AuthException;
+import javax.security.auth.message.MessageInfo;
+import javax.security.auth.message.MessagePolicy;
+import javax.security.auth.message.config.ServerAuthConfig;
+import javax.security.auth.message.config.ServerAuthContext;
+import javax.security.auth.message.module.ServerAuthModule;
+
+/**
+ * The ServerAuthConfig for a single message-layer and application-context.
+ * The ServerAuthContext, and with it the module, is created and initialized
+ * once and then reused for every request. The module gets the options of
+ * the provider together with the properties passed in when the context is
+ * first requested, and a request-policy that is not mandatory, as whether
+ * authentication is mandatory is decided per request by the container.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class AuthModuleServerAuthConfig implements ServerAuthConfig {
+
+    private static final String AUTH_CONTEXT_ID = "AuthenticRoast";
+
+    private final String layer;
+
+    private final String appContext;
+
+    private final CallbackHandler handler;
+
+    private final Class<? extends ServerAuthModule> moduleClass;
+
+    private final Map<String, String> options;
+
+    private volatile AuthModuleServerAuthContext context;
+
+    public AuthModuleServerAuthConfig(String layer, String appContext, CallbackHandler handler,
+            Class<? extends ServerAuthModule> moduleClass, Map<String, String> options) {
+        this.layer = layer;
+        this.appContext = appContext;
+        this.handler = handler;
+        this.moduleClass = moduleClass;
+        this.options = options;
+    }
+
+    /**
+     * The raw Map is given by ServerAuthConfig, the properties are passed
+     * on as options of the module.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public ServerAuthContext getAuthContext(String authContextID, Subject serviceSubject,
+            Map properties) throws AuthException {
+        AuthModuleServerAuthContext result = context;
+        if (result == null) {
+            synchronized (this) {
+                result = context;
+                if (result == null) {
+                    result = new AuthModuleServerAuthContext(createModule(properties));
+                    context = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private ServerAuthModule createModule(Map<String, Object> properties) throws AuthException {
+        ServerAuthModule module;
+        try {
+            module = moduleClass.getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            AuthException result = new AuthException("unable to create " + moduleClass.getName());
+            result.initCause(ex);
+            throw result;
+        }
+        Map<String, Object> moduleOptions = new HashMap<String, Object>(options);
+        if (properties != null) {
+            moduleOptions.putAll(properties);
+        }
+        MessagePolicy requestPolicy = new MessagePolicy(new MessagePolicy.TargetPolicy[0], false);
+        module.initialize(requestPolicy, null, handler, moduleOptions);
+        return module;
+    }
+
+    public String getMessageLayer() {
+        return layer;
+    }
+
+    public String getAppContext() {
+        return appContext;
+    }
+
+    public String getAuthContextID(MessageInfo messageInfo) {
+        return AUTH_CONTEXT_ID;
+    }
+
+    public void refresh() {
+        context = null;
+    }
+
+    public boolean isProtected() {
+        return false;
+    }
+}
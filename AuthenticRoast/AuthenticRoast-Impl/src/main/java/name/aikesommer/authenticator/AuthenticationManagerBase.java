@@ -23,9 +23,11 @@
  */
 package name.aikesommer.authenticator;
 
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 
 
 /**
@@ -36,8 +38,28 @@ public abstract class AuthenticationManagerBase implements PluggableAuthenticato
 
     protected static final Logger log = Logger.getLogger(AuthenticationManagerBase.class.getName());
 
+    private static final String PRINCIPAL_STORE_NOTE = AuthenticationManagerBase.class.getName()
+            + ".PRINCIPAL_STORE";
+
     private RequestHandler requestHandler = new RequestHandler();
 
+    private PrincipalStore.Factory principalStoreFactory;
+
+    /**
+     * Replace the RequestHandler, eg to configure how requests are saved.
+     */
+    protected void setRequestHandler(RequestHandler requestHandler) {
+        this.requestHandler = requestHandler;
+    }
+
+    /**
+     * Set the factory choosing the PrincipalStore for every request, null to
+     * always use the default one.
+     */
+    protected void setPrincipalStoreFactory(PrincipalStore.Factory principalStoreFactory) {
+        this.principalStoreFactory = principalStoreFactory;
+    }
+
     public boolean hasRequest(AuthenticationRequest request) {
         return requestHandler.getPathForRequest(request) != null;
     }
@@ -66,12 +88,19 @@ public abstract class AuthenticationManagerBase implements PluggableAuthenticato
                 to = path;
             } else {
                 to = context + path;
+                String state = requestHandler.getState(authRequest);
+                if (state != null) {
+                    to += (to.indexOf('?') < 0 ? "?" : "&") + RequestHandler.STATE_PARAMETER + "=" + state;
+                }
             }
+            flush(authRequest);
             authRequest.getHttpServletResponse().sendRedirect(to);
             ((ModifiableRequest) authRequest).setForwarded(true);
         } catch (Throwable t) {
             log.severe("unexpected error forwarding or redirecting to " + path + ": " + t);
-            log.log(Level.FINE, "unexpected error forwarding or redirecting to " + path, t);
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "unexpected error forwarding or redirecting to " + path, t);
+            }
             if (t instanceof RuntimeException) {
                 throw (RuntimeException) t;
             } else {
@@ -81,7 +110,7 @@ public abstract class AuthenticationManagerBase implements PluggableAuthenticato
     }
 
     public void register(AuthenticationRequest request, SimplePrincipal simplePrincipal) {
-        getPrincipalStore().store(simplePrincipal);
+        getPrincipalStore(request).store(simplePrincipal);
     }
 
     public void restoreRequest(AuthenticationRequest request) {
@@ -89,6 +118,7 @@ public abstract class AuthenticationManagerBase implements PluggableAuthenticato
     }
 
     public void redirectToRequest(AuthenticationRequest request) {
+        requestHandler.persist(request);
         String path = requestHandler.getPathForRequest(request);
         String context = requestHandler.getContextForRequest(request);
 
@@ -108,4 +138,53 @@ public abstract class AuthenticationManagerBase implements PluggableAuthenticato
     }
 	
 	protected abstract PrincipalStore getPrincipalStore();
+
+    /**
+     * Get the PrincipalStore to use for request. This is the one created by
+     * the PrincipalStore.Factory if there is one and it returns a store,
+     * otherwise the one from {@link #getDefaultPrincipalStore(AuthenticationRequest)}.
+     * The result is kept for the rest of the request.
+     *
+     * @param request The current request.
+     * @return The PrincipalStore for request.
+     */
+    protected PrincipalStore getPrincipalStore(AuthenticationRequest request) {
+        if (principalStoreFactory == null) {
+            return getDefaultPrincipalStore(request);
+        }
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        PrincipalStore store = (PrincipalStore) httpRequest.getAttribute(PRINCIPAL_STORE_NOTE);
+        if (store == null) {
+            store = principalStoreFactory.factory(request);
+            if (store == null) {
+                store = getDefaultPrincipalStore(request);
+            }
+            httpRequest.setAttribute(PRINCIPAL_STORE_NOTE, store);
+        }
+        return store;
+    }
+
+    /**
+     * Get the PrincipalStore to use for request if the factory does not
+     * choose one. The default implementation returns
+     * {@link #getPrincipalStore()}, subclasses can override this to keep
+     * the principal somewhere depending on the request, like a cookie.
+     *
+     * @param request The current request.
+     * @return The PrincipalStore for request.
+     */
+    protected PrincipalStore getDefaultPrincipalStore(AuthenticationRequest request) {
+        return getPrincipalStore();
+    }
+
+    /**
+     * Write any pending changes of the authentication-map of request to the
+     * response. This has to happen before the response is committed.
+     */
+    protected void flush(AuthenticationRequest request) {
+        Map<String, Object> map = request.getAuthenticationMap();
+        if (map instanceof TokenAttributeMap) {
+            ((TokenAttributeMap) map).flush();
+        }
+    }
 }
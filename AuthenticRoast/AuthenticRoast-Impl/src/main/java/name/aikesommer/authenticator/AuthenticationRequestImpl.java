@@ -25,7 +25,9 @@ package name.aikesommer.authenticator;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -34,6 +36,7 @@ import javax.security.auth.Subject;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 
@@ -51,6 +54,12 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
     private boolean mandatory;
     private boolean forwarded = false;
     private Map<String, Object> authenticationMap;
+    private SessionMap sessionMap;
+    private RequestDescriptor descriptor;
+    private Map<String, Object> requestMap;
+    private Map<String, Object> applicationMap;
+    private ServletContext delegateContext;
+    private AuthenticationRequest delegate;
 
     public AuthenticationRequestImpl(HttpServletRequest request, HttpServletResponse response,
             boolean mandatory, boolean crossContext) {
@@ -60,7 +69,66 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         this.authenticationMap = getSessionMap();
     }
 
-    protected abstract AuthenticationRequest delegate(ServletContext context);
+    /**
+     * Create a request using authenticationMap instead of the session for
+     * the state of the authentication.
+     */
+    public AuthenticationRequestImpl(HttpServletRequest request, HttpServletResponse response,
+            boolean mandatory, boolean crossContext, Map<String, Object> authenticationMap) {
+        this.request = request;
+        this.response = response;
+        this.mandatory = mandatory;
+        this.authenticationMap = authenticationMap;
+    }
+
+    /**
+     * Prepare this instance for another request, so it can be recycled.
+     * The map views and delegates are kept, they always refer to the current
+     * request.
+     *
+     * @param authenticationMap The authentication-map to use or null to use
+     *          the session.
+     */
+    protected void reset(HttpServletRequest request, HttpServletResponse response,
+            boolean mandatory, Map<String, Object> authenticationMap) {
+        this.request = request;
+        this.response = response;
+        this.mandatory = mandatory;
+        this.forwarded = false;
+        this.descriptor = null;
+        if (sessionMap != null) {
+            sessionMap.reset(request);
+        }
+        this.authenticationMap = authenticationMap == null ? getSessionMap() : authenticationMap;
+    }
+
+    /**
+     * Drop all references to the current request, so a recycled instance
+     * does not keep it alive.
+     */
+    protected void clear() {
+        this.request = null;
+        this.response = null;
+        this.authenticationMap = null;
+        this.descriptor = null;
+        if (sessionMap != null) {
+            sessionMap.reset(null);
+        }
+    }
+
+    /**
+     * Get the request to pass on to an authenticator in context. The
+     * request is created once per context and reused.
+     */
+    protected AuthenticationRequest delegate(ServletContext context) {
+        if (delegate == null || delegateContext != context) {
+            delegate = createDelegate(context);
+            delegateContext = context;
+        }
+        return delegate;
+    }
+
+    protected abstract AuthenticationRequest createDelegate(ServletContext context);
 
     /**
      * Get the ServletContext for the current request.
@@ -68,7 +136,7 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
      * @return The ServletContext instance for the current request.
      */
     public ServletContext getServletContext() {
-        return request.getSession(true).getServletContext();
+        return request.getServletContext();
     }
 
     /**
@@ -105,11 +173,20 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
      *          the context-path and excluding any parameters.
      */
     public String getRequestPath() {
-        String requested = request.getRequestURI();
-        if (! requested.startsWith(getContextPath())) {
-            throw new IllegalArgumentException(requested);
+        return getRequestDescriptor().getPath();
+    }
+
+    /**
+     * Get the descriptor of the current request, which is computed only
+     * once per request.
+     *
+     * @return The RequestDescriptor for the current request.
+     */
+    public RequestDescriptor getRequestDescriptor() {
+        if (descriptor == null) {
+            descriptor = RequestDescriptor.of(request);
         }
-        return requested.substring(getContextPath().length());
+        return descriptor;
     }
 
     /**
@@ -117,7 +194,7 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
      * @return The context-path for the current request.
      */
     public String getContextPath() {
-        return request.getContextPath();
+        return getRequestDescriptor().getContextPath();
     }
 
     public boolean isForwarded() {
@@ -131,32 +208,18 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
     /**
      * Get a map containing all session attributes.
      * Changes to this map will be reflected in the session attributes.
+     * The session is only created once a value is put into the map, as long
+     * as there is none the map is just empty.
+     * The same map is returned for the whole request, it looks up the session
+     * only once and caches the values read from it.
      * 
      * @return A map representing all session attributes.
      */
     public Map<String, Object> getSessionMap() {
-        return new AttributeMap() {
-
-            @Override
-            public Enumeration<String> getAttributeNames() {
-                return request.getSession(true).getAttributeNames();
-            }
-
-            @Override
-            public Object getAttribute(String s) {
-                return request.getSession(true).getAttribute(s);
-            }
-
-            @Override
-            public void setAttribute(String s, Object o) {
-                request.getSession(true).setAttribute(s, o);
-            }
-
-            @Override
-            public void removeAttribute(String s) {
-                request.getSession(true).removeAttribute(s);
-            }
-        };
+        if (sessionMap == null) {
+            sessionMap = new SessionMap(request);
+        }
+        return sessionMap;
     }
 
     /**
@@ -166,6 +229,13 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
      * @return A map representing all request attributes.
      */
     public Map<String, Object> getRequestMap() {
+        if (requestMap == null) {
+            requestMap = createRequestMap();
+        }
+        return requestMap;
+    }
+
+    private Map<String, Object> createRequestMap() {
         return new AttributeMap() {
 
             @Override
@@ -191,27 +261,33 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
     }
 
     public Map<String, Object> getApplicationMap() {
-        final ServletContext context = getServletContext();
+        if (applicationMap == null) {
+            applicationMap = createApplicationMap();
+        }
+        return applicationMap;
+    }
+
+    private Map<String, Object> createApplicationMap() {
         return new AttributeMap() {
 
             @Override
             public Enumeration<String> getAttributeNames() {
-                return context.getAttributeNames();
+                return getServletContext().getAttributeNames();
             }
 
             @Override
             public Object getAttribute(String s) {
-                return context.getAttribute(s);
+                return getServletContext().getAttribute(s);
             }
 
             @Override
             public void setAttribute(String s, Object o) {
-                context.setAttribute(s, o);
+                getServletContext().setAttribute(s, o);
             }
 
             @Override
             public void removeAttribute(String s) {
-                context.removeAttribute(s);
+                getServletContext().removeAttribute(s);
             }
         };
     }
@@ -248,12 +324,42 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
 
         private Subject clientSubject;
 
+        /**
+         * The asynchronous authentication still using this instance, if any.
+         */
+        AuthModule.AsyncAuthentication pending;
+
         public JSR196(HttpServletRequest request, HttpServletResponse response,
                 Subject clientSubject, boolean mandatory) {
             super(request, response, mandatory, false);
             this.clientSubject = clientSubject;
         }
 
+        public JSR196(HttpServletRequest request, HttpServletResponse response,
+                Subject clientSubject, boolean mandatory, Map<String, Object> authenticationMap) {
+            super(request, response, mandatory, false, authenticationMap);
+            this.clientSubject = clientSubject;
+        }
+
+        /**
+         * Prepare this instance for another request.
+         *
+         * @param authenticationMap The authentication-map to use or null to
+         *          use the session.
+         */
+        public void reset(HttpServletRequest request, HttpServletResponse response,
+                Subject clientSubject, boolean mandatory, Map<String, Object> authenticationMap) {
+            reset(request, response, mandatory, authenticationMap);
+            this.clientSubject = clientSubject;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            this.clientSubject = null;
+            this.pending = null;
+        }
+
         /**
          * Get the ClientSubject for the current request.
          * 
@@ -264,7 +370,7 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         }
 
         @Override
-        protected JSR196Request delegate(ServletContext context) {
+        protected JSR196Request createDelegate(ServletContext context) {
             return new WrappedRequest.JSR196(context, this);
         }
 
@@ -328,6 +434,129 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         public abstract void removeAttribute(String s);
     }
 
+    /**
+     * The AttributeMap for the session of a request. Values read are cached
+     * for the rest of the request, so an instance must not outlive its
+     * request. The current session is checked on every access, if it has
+     * been invalidated, replaced or its id has changed, the cache is dropped.
+     */
+    public static class SessionMap extends AttributeMap {
+
+        private static final Object NULL = new Object();
+
+        private HttpServletRequest request;
+        private final Map<String, Object> cache = new HashMap<String, Object>();
+        private HttpSession session;
+        private String sessionId;
+
+        public SessionMap(HttpServletRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Get the current session, dropping the cached values if it is not
+         * the one they were read from, eg because it has been invalidated or
+         * its id has changed.
+         */
+        private HttpSession session(boolean create) {
+            HttpSession current = request.getSession(create);
+            String id = null;
+            if (current != null) {
+                try {
+                    id = current.getId();
+                } catch (IllegalStateException ex) {
+                    current = null;
+                }
+            }
+            if (current != session || (id != null && !id.equals(sessionId))) {
+                cache.clear();
+                session = current;
+                sessionId = id;
+            }
+            return current;
+        }
+
+        /**
+         * Drop the cached session and values, so they are read again.
+         */
+        public void reset() {
+            session = null;
+            sessionId = null;
+            cache.clear();
+        }
+
+        /**
+         * Use this map for another request.
+         */
+        public void reset(HttpServletRequest request) {
+            reset();
+            this.request = request;
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            HttpSession current = session(false);
+            if (current == null) {
+                return Collections.emptyEnumeration();
+            }
+            try {
+                return current.getAttributeNames();
+            } catch (IllegalStateException ex) {
+                reset();
+                return Collections.emptyEnumeration();
+            }
+        }
+
+        @Override
+        public Object getAttribute(String s) {
+            HttpSession current = session(false);
+            if (current == null) {
+                return null;
+            }
+            Object value = cache.get(s);
+            if (value != null) {
+                return value == NULL ? null : value;
+            }
+            try {
+                value = current.getAttribute(s);
+            } catch (IllegalStateException ex) {
+                reset();
+                return null;
+            }
+            cache.put(s, value == null ? NULL : value);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(String s, Object o) {
+            if (o == null) {
+                removeAttribute(s);
+                return;
+            }
+            try {
+                session(true).setAttribute(s, o);
+            } catch (IllegalStateException ex) {
+                reset();
+                session(true).setAttribute(s, o);
+            }
+            cache.put(s, o);
+        }
+
+        @Override
+        public void removeAttribute(String s) {
+            HttpSession current = session(false);
+            if (current != null) {
+                try {
+                    current.removeAttribute(s);
+                } catch (IllegalStateException ex) {
+                    reset();
+                    return;
+                }
+            }
+            cache.put(s, NULL);
+        }
+    }
+
     public abstract static class NoteMap extends AbstractMap<String, Object> {
 
         public abstract Iterator<String> getNoteNames();
@@ -343,6 +572,10 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
             return new NoteEntrySet(this);
         }
 
+        /**
+         * This has to walk all the names, subclasses should override it if
+         * their store knows its size.
+         */
         @Override
         public int size() {
             int count = 0;
@@ -362,25 +595,16 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
             return getNote((String) key);
         }
 
+        /**
+         * None of the backing stores can hold null-values, setting null
+         * removes the note instead, so a single lookup is enough here.
+         */
         @Override
         public boolean containsKey(Object key) {
             if (!(key instanceof String)) {
                 return false;
             }
-
-            String keyStr = (String) key;
-            if (get(keyStr) != null) {
-                return true;
-            }
-
-            for (Iterator<String> it = getNoteNames(); it.hasNext();) {
-                String name = it.next();
-                if (name.equals(keyStr)) {
-                    return true;
-                }
-            }
-
-            return false;
+            return getNote((String) key) != null;
         }
 
         @Override
@@ -454,6 +678,21 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         public int size() {
             return map.size();
         }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return map.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return map.remove(o) != null;
+        }
     }
 
     public static class NoteEntrySet extends AbstractSet<Map.Entry<String, Object>> {
@@ -468,29 +707,14 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         public Iterator<Map.Entry<String, Object>> iterator() {
             return new Iterator<Map.Entry<String, Object>>() {
 
-                private Iterator<String> it = map.keySet().iterator();
+                private Iterator<String> it = map.getNoteNames();
 
                 public boolean hasNext() {
                     return it.hasNext();
                 }
 
                 public Map.Entry<String, Object> next() {
-                    return new Map.Entry() {
-
-                        private String key = it.next();
-
-                        public Object getKey() {
-                            return key;
-                        }
-
-                        public Object getValue() {
-                            return map.get(key);
-                        }
-
-                        public Object setValue(Object value) {
-                            return map.put(key, value);
-                        }
-                    };
+                    return new NoteEntry(map, it.next());
                 }
 
                 public void remove() {
@@ -503,5 +727,68 @@ public abstract class AuthenticationRequestImpl implements ModifiableRequest {
         public int size() {
             return map.size();
         }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+    }
+
+    /**
+     * An entry of a NoteMap. The value is looked up once, when it is first
+     * needed, and changes are written through to the map.
+     */
+    private static final class NoteEntry implements Map.Entry<String, Object> {
+
+        private static final Object UNKNOWN = new Object();
+
+        private final NoteMap map;
+        private final String key;
+        private Object value = UNKNOWN;
+
+        NoteEntry(NoteMap map, String key) {
+            this.map = map;
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            if (value == UNKNOWN) {
+                value = map.getNote(key);
+            }
+            return value;
+        }
+
+        public Object setValue(Object value) {
+            Object old = getValue();
+            map.setNote(key, value);
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            Object mine = getValue();
+            return key.equals(other.getKey())
+                    && (mine == null ? other.getValue() == null : mine.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object mine = getValue();
+            return key.hashCode() ^ (mine == null ? 0 : mine.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
     }
 }
@@ -0,0 +1,112 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, lock-free pool with a fixed number of slots. Taking and returning
+ * objects does not allocate, objects offered to a full pool are rejected and
+ * have to be disposed of by the caller.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class BoundedPool<T> {
+
+    private final AtomicReferenceArray<T> slots;
+
+    public BoundedPool(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<T>(capacity);
+    }
+
+    /**
+     * Take an object from the pool.
+     *
+     * @return A pooled object or null if the pool is empty.
+     */
+    public T poll() {
+        int length = slots.length();
+        int start = start(length);
+        for (int i = 0; i < length; i++) {
+            int index = (start + i) % length;
+            T value = slots.get(index);
+            if (value != null && slots.compareAndSet(index, value, null)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return an object to the pool.
+     *
+     * @param value The object to return.
+     * @return false if the pool is full and the object has not been taken.
+     */
+    public boolean offer(T value) {
+        int length = slots.length();
+        int start = start(length);
+        for (int i = 0; i < length; i++) {
+            int index = (start + i) % length;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all objects from the pool.
+     *
+     * @return The objects that were pooled.
+     */
+    public List<T> drain() {
+        List<T> result = new ArrayList<T>();
+        for (int i = 0; i < slots.length(); i++) {
+            T value = slots.getAndSet(i, null);
+            if (value != null) {
+                result.add(value);
+            }
+        }
+        return result;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Spread threads over the slots, so that they do not all contend on the
+     * first ones.
+     */
+    private static int start(int length) {
+        return (int) (Thread.currentThread().getId() % length);
+    }
+}
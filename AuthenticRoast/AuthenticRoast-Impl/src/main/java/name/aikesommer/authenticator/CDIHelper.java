@@ -24,11 +24,19 @@
 package name.aikesommer.authenticator;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.Stateless;
 import javax.enterprise.context.Dependent;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.Instance;
@@ -36,34 +44,152 @@ import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.enterprise.inject.spi.CDI;
 import javax.enterprise.util.AnnotationLiteral;
+import javax.inject.Singleton;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 public class CDIHelper {
 
+	private static final Logger log = Logger.getLogger(CDIHelper.class.getName());
+
+	/**
+	 * The qualifier used to look up the application's main authenticator.
+	 */
+	public static final Annotation PRIMARY = new AnnotationLiteral<Primary>() {};
+
+	/**
+	 * Source of the generations handed out to applications, so a generation
+	 * is never reused once it has been invalidated.
+	 */
+	private static final AtomicLong generations = new AtomicLong();
+
+	/**
+	 * The BeanManager and resolved beans per application, keyed by the
+	 * context class loader of the application. Neither the keys nor the
+	 * values keep an application from being collected, even if it is
+	 * undeployed without {@link CDIExtension} being notified.
+	 */
+	private static final Map<ClassLoader, Resolutions> resolutions =
+			new WeakHashMap<ClassLoader, Resolutions>();
+
+	/**
+	 * Get the container generation of the current application. Values
+	 * resolved through this class are only valid as long as the generation
+	 * stays the same.
+	 *
+	 * @return The current generation.
+	 */
+	public static long getGeneration() {
+		return resolutions(contextClassLoader()).generation;
+	}
+
+	/**
+	 * Mark everything resolved so far by the application that is shutting
+	 * down as stale and drop its cached resolutions. This is called by
+	 * {@link CDIExtension} when the container shuts down.
+	 *
+	 * @param beanManager The BeanManager of the container shutting down.
+	 */
+	static void invalidate(BeanManager beanManager) {
+		ClassLoader current = contextClassLoader();
+		synchronized (resolutions) {
+			for (Map.Entry<ClassLoader, Resolutions> entry : resolutions.entrySet()) {
+				if (entry.getKey() == current || beanManager.equals(entry.getValue().getBeanManager())) {
+					entry.setValue(new Resolutions(null, generations.incrementAndGet()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the resolutions of the application with the given class loader,
+	 * without looking up its BeanManager.
+	 */
+	private static Resolutions resolutions(ClassLoader loader) {
+		synchronized (resolutions) {
+			Resolutions r = resolutions.get(loader);
+			if (r == null) {
+				r = new Resolutions(null, generations.get());
+				resolutions.put(loader, r);
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * Check whether the bean resolved for the given type and qualifiers can be
+	 * held on to and reused across requests. This is the case for normal-scoped
+	 * beans (which are client proxies), singletons and stateless or singleton
+	 * session beans.
+	 *
+	 * @return true if references to the bean may be reused.
+	 */
+	public static boolean isReusable(Class<?> beanClass, Annotation... qualifiers) {
+		Bean<?> bean = resolve(getBeanManager(), beanClass, qualifiers);
+		if (bean == null) {
+			return false;
+		}
+		Class<? extends Annotation> scope = bean.getScope();
+		return getBeanManager().isNormalScope(scope)
+				|| Singleton.class.equals(scope)
+				|| bean.getBeanClass().isAnnotationPresent(Stateless.class)
+				|| bean.getBeanClass().isAnnotationPresent(javax.ejb.Singleton.class);
+	}
+
+	/**
+	 * Check whether the bean resolved for the given type and qualifiers is a
+	 * Dependent-scoped bean, which needs to be acquired and released explicitly
+	 * through {@link #acquire(Class, Annotation...)}. Session beans are not
+	 * considered here, as their references are managed by the EJB container.
+	 *
+	 * @return true if the bean is Dependent-scoped.
+	 */
+	public static boolean isDependent(Class<?> beanClass, Annotation... qualifiers) {
+		Bean<?> bean = resolve(getBeanManager(), beanClass, qualifiers);
+		return bean != null && Dependent.class.equals(bean.getScope()) && !isReusable(beanClass, qualifiers);
+	}
+
 	public static <T> T getReference(Class<T> beanClass) {
 		return getReference(beanClass, getBeanManager());
 	}
 
-	public static <T> T getReferenceOrNull(Class<T> beanClass,  Annotation... qualifier) {
+	public static <T> BeanInstance<T> getReferenceOrNull(Class<T> beanClass,  Annotation... qualifier) {
 		return getReferenceOrNull(beanClass, getBeanManager(), qualifier);
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Get a reference to the bean, which is not released by the caller.
+	 * Dependent-scoped beans could never be destroyed this way, so they have
+	 * to be obtained through {@link #acquire(BeanManager, Class, Annotation...)}
+	 * instead.
+	 *
+	 * @throws IllegalStateException if the bean is Dependent-scoped.
+	 */
 	public static <T> T getReference(Class<T> beanClass, BeanManager beanManager, Annotation... qualifier) {
-
-		Bean<T> bean = (Bean<T>) beanManager.resolve(beanManager.getBeans(beanClass, qualifier));
-		return (T) beanManager.getReference(bean, beanClass, beanManager.createCreationalContext(bean));
+		BeanInstance<T> instance = acquire(beanManager, beanClass, qualifier);
+		if (instance == null) {
+			return null;
+		}
+		if (instance.isDependent()) {
+			instance.release();
+			throw new IllegalStateException(beanClass.getName()
+					+ " is Dependent-scoped and has to be acquired and released");
+		}
+		return instance.get();
 	}
 
-	@SuppressWarnings("unchecked")
-	public static <T> T getReferenceOrNull(Class<T> beanClass, BeanManager beanManager, Annotation... qualifier) {
+	/**
+	 * Get a reference to the bean or null if it cannot be resolved. Like
+	 * {@link #acquire(BeanManager, Class, Annotation...)}, the result has to
+	 * be released once it is no longer needed, so Dependent-scoped beans are
+	 * destroyed together with their CreationalContext.
+	 */
+	public static <T> BeanInstance<T> getReferenceOrNull(Class<T> beanClass, BeanManager beanManager,
+			Annotation... qualifier) {
 		try {
-			return getBeanClassInstance(beanManager, beanClass, qualifier);
-//			Bean<T> bean = (Bean<T>) beanManager.resolve(beanManager.getBeans(beanClass, qualifier));
-//			return (T) beanManager.getReference(bean, beanClass, beanManager.createCreationalContext(bean));
+			return acquire(beanManager, beanClass, qualifier);
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.log(Level.WARNING, "unable to get a reference for " + beanClass.getName(), e);
 			return null;
 		}
 	}
@@ -78,15 +204,53 @@ public class CDIHelper {
 
 	public static <T> T getInstance(final Class<T> type, final Class<? extends Annotation> scope, final BeanManager beanManager, Annotation... qualifier) {
 
-		if(qualifier == null) {
-			@SuppressWarnings("unchecked")
-			Bean<T> bean = (Bean<T>) beanManager.resolve(beanManager.getBeans(type));
-			return beanManager.getContext(scope).get(bean, beanManager.createCreationalContext(bean));
-		} else {
-			@SuppressWarnings("unchecked")
-			Bean<T> bean = (Bean<T>) beanManager.resolve(beanManager.getBeans(type, qualifier));
-			return beanManager.getContext(scope).get(bean, beanManager.createCreationalContext(bean));
+		Bean<T> bean = resolve(beanManager, type, qualifier);
+		return beanManager.getContext(scope).get(bean, beanManager.createCreationalContext(bean));
+	}
+
+	/**
+	 * Resolve the bean for the given type and qualifiers. Resolutions against
+	 * the BeanManager of the current application are cached until the
+	 * container shuts down, any other BeanManager is asked every time.
+	 *
+	 * @return The resolved bean or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Bean<T> resolve(BeanManager beanManager, Class<T> type, Annotation... qualifiers) {
+		if (qualifiers == null) {
+			qualifiers = new Annotation[0];
+		}
+		Resolutions r = resolutions(contextClassLoader());
+		if (r.getBeanManager() != beanManager || !isShared(type, qualifiers)) {
+			return (Bean<T>) beanManager.resolve(beanManager.getBeans(type, qualifiers));
+		}
+
+		BeanKey key = new BeanKey(type, qualifiers);
+		WeakReference<Object> cached = r.beans.get(key);
+		Object bean = cached == null ? null : cached.get();
+		if (bean == null) {
+			bean = beanManager.resolve(beanManager.getBeans(type, qualifiers));
+			r.beans.put(key, new WeakReference<Object>(bean == null ? Resolutions.NONE : bean));
+		}
+		return bean == Resolutions.NONE ? null : (Bean<T>) bean;
+	}
+
+	/**
+	 * Check whether the type and qualifiers are loaded along with this
+	 * class, so caching them does not keep an application from being
+	 * collected.
+	 */
+	private static boolean isShared(Class<?> type, Annotation[] qualifiers) {
+		ClassLoader shared = CDIHelper.class.getClassLoader();
+		if (type.getClassLoader() != shared) {
+			return false;
+		}
+		for (Annotation qualifier : qualifiers) {
+			if (qualifier.annotationType().getClassLoader() != shared) {
+				return false;
+			}
 		}
+		return true;
 	}
 
 	public static BeanManager tryGetBeanManager() {
@@ -97,19 +261,48 @@ public class CDIHelper {
 		}
 	}
 
-		public static BeanManager getBeanManager() {
+	/**
+	 * Get the BeanManager for the current application. The lookup is done
+	 * once per application, subsequent calls return the cached instance.
+	 *
+	 * @return The BeanManager for the current application.
+	 * @throws IllegalStateException if there is no BeanManager available.
+	 */
+	public static BeanManager getBeanManager() {
+		ClassLoader loader = contextClassLoader();
+		Resolutions r = resolutions(loader);
+		BeanManager beanManager = r.getBeanManager();
+		if (beanManager != null) {
+			return beanManager;
+		}
+		beanManager = lookupBeanManager();
+		synchronized (resolutions) {
+			/** unless the application has been invalidated meanwhile */
+			if (resolutions.get(loader) == r) {
+				resolutions.put(loader, new Resolutions(beanManager, r.generation));
+			}
+		}
+		return beanManager;
+	}
+
+	private static BeanManager lookupBeanManager() {
 		InitialContext context = null;
 		try {
 			context = new InitialContext();
 			return (BeanManager) context.lookup("java:comp/BeanManager");
 		} catch (NamingException e) {
-			System.out.println("EE context not available. Falling back plain CDI.");
+			log.fine("EE context not available, falling back to plain CDI");
 			return CDI.current().getBeanManager();
 		} finally {
 			closeContext(context);
 		}
 	}
 
+	private static ClassLoader contextClassLoader() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader == null ? CDIHelper.class.getClassLoader() : loader;
+	}
+
 	private static void closeContext(InitialContext context) {
 		try {
 			if (context != null) {
@@ -120,63 +313,137 @@ public class CDIHelper {
 		}
 	}
 	
+	public static <T> BeanInstance<T> acquire(Class<T> beanType, Annotation... qualifiers) {
+		return acquire(getBeanManager(), beanType, qualifiers);
+	}
+
 	/**
-	 * Returns a proxied bean class instance that cleans up itself
-	 * @param <B>
-	 * @param beanManager
-	 * @param beanType
-	 * @param qualifiers
-	 * @return 
-	 */
-	public static <B> B getBeanClassInstance(BeanManager beanManager, Class<B> beanType, Annotation... qualifiers) {
-		final B result;
-		Set<Bean<?>> beans = beanManager.getBeans(beanType, qualifiers);
-		if (beans.isEmpty()) {
-			result = null;
-		} else {
-			final Bean<B> bean = (Bean<B>) beanManager.resolve(beans);
-			if (bean == null) {
-				result = null;
-			} else {
-				final CreationalContext<B> cc = beanManager.createCreationalContext(bean);
-				final B reference = (B) beanManager.getReference(bean, beanType, cc);
-				Class<? extends Annotation> scope = bean.getScope();
-				if (scope.equals(Dependent.class)) {
-					if (beanType.isInterface()) {
-						result = (B) Proxy.newProxyInstance(bean.getBeanClass().getClassLoader(), new Class<?>[]{beanType, Finalizable.class}, new InvocationHandler() {
-							@Override
-							public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-								if (method.getName().equals("finalize")) {
-									bean.destroy(reference, cc);
-								}
-								try {
-									return method.invoke(reference, args);
-								} catch (InvocationTargetException e) {
-									throw e.getCause();
-								}
-							}
-						});
-					} else {
-						throw new IllegalArgumentException("If the resolved bean is dependent scoped then the received beanType should be an interface in order to manage the destruction of the created dependent bean class instance.");
-					}
-				} else {
-					result = reference;
-				}
-			}
+	 * Get an instance of the bean, which has to be released by the caller
+	 * once it is no longer needed. Releasing will destroy Dependent-scoped
+	 * beans together with their CreationalContext and do nothing for any
+	 * other scope.
+	 *
+	 * @return The acquired instance or null if the bean cannot be resolved.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> BeanInstance<T> acquire(BeanManager beanManager, Class<T> beanType, Annotation... qualifiers) {
+		Bean<T> bean = resolve(beanManager, beanType, qualifiers);
+		if (bean == null) {
+			return null;
 		}
-		return result;
+		CreationalContext<T> cc = beanManager.createCreationalContext(bean);
+		T reference = (T) beanManager.getReference(bean, beanType, cc);
+		if (Dependent.class.equals(bean.getScope())) {
+			return new BeanInstance<T>(reference, bean, cc);
+		}
+		return BeanInstance.of(reference);
 	}
 
-
-	
 	public static Instance<PluggableAuthenticator> getCdiAuthenticator() {
 		Instance<PluggableAuthenticator> authenticator = CDI.current().select(PluggableAuthenticator.class, 
 				new AnnotationLiteral<Primary>() {});
 		return authenticator;
 	}
 	
-	interface Finalizable {
+	/**
+	 * An instance obtained through {@link CDIHelper#acquire(Class, Annotation...)},
+	 * which needs to be released once it is no longer used.
+	 */
+	public static final class BeanInstance<T> {
+
+		private final T instance;
+		private final Bean<T> bean;
+		private final CreationalContext<T> context;
+
+		private BeanInstance(T instance, Bean<T> bean, CreationalContext<T> context) {
+			this.instance = instance;
+			this.bean = bean;
+			this.context = context;
+		}
+
+		/**
+		 * Wrap an instance whose lifecycle is not managed by the caller.
+		 * Releasing it will do nothing.
+		 */
+		public static <T> BeanInstance<T> of(T instance) {
+			return new BeanInstance<T>(instance, null, null);
+		}
 
-		void finalize() throws Throwable;
+		public T get() {
+			return instance;
+		}
+
+		/**
+		 * @return true if this instance is destroyed when released.
+		 */
+		public boolean isDependent() {
+			return bean != null;
+		}
+
+		public void release() {
+			if (bean != null) {
+				try {
+					bean.destroy(instance, context);
+				} finally {
+					context.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The generation of an application, its cached BeanManager and the
+	 * beans resolved through it. The BeanManager and beans are held weakly,
+	 * as they are kept alive by the container as long as it is running.
+	 */
+	private static final class Resolutions {
+
+		private static final Object NONE = new Object();
+
+		private final WeakReference<BeanManager> beanManager;
+		private final long generation;
+		private final ConcurrentMap<BeanKey, WeakReference<Object>> beans =
+				new ConcurrentHashMap<BeanKey, WeakReference<Object>>();
+
+		Resolutions(BeanManager beanManager, long generation) {
+			this.beanManager = beanManager == null ? null : new WeakReference<BeanManager>(beanManager);
+			this.generation = generation;
+		}
+
+		/**
+		 * @return The BeanManager or null if it has not been looked up yet.
+		 */
+		BeanManager getBeanManager() {
+			return beanManager == null ? null : beanManager.get();
+		}
+	}
+
+	/**
+	 * Key for resolved beans, the order of qualifiers is not significant.
+	 */
+	private static final class BeanKey {
+
+		private final Class<?> type;
+		private final Set<Annotation> qualifiers;
+
+		BeanKey(Class<?> type, Annotation[] qualifiers) {
+			this.type = type;
+			this.qualifiers = qualifiers.length == 0 ? Collections.<Annotation>emptySet()
+					: new HashSet<Annotation>(Arrays.asList(qualifiers));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BeanKey)) {
+				return false;
+			}
+			BeanKey other = (BeanKey) obj;
+			return type.equals(other.type) && qualifiers.equals(other.qualifiers);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + qualifiers.hashCode();
+		}
 	}
 }
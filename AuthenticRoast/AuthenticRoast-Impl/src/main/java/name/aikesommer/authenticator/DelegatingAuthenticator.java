@@ -23,6 +23,7 @@
  */
 package name.aikesommer.authenticator;
 
+import java.util.concurrent.CompletionStage;
 import javax.servlet.ServletContext;
 
 
@@ -52,6 +53,16 @@ public class DelegatingAuthenticator extends PluggableAuthenticator {
         return delegateAuthenticator.authenticate(manager, wrapRequest(request));
     }
 
+    @Override
+    public CompletionStage<AuthenticationRequest.Status> tryAuthenticateAsync(AuthenticationManager manager, AuthenticationRequest request) {
+        return delegateAuthenticator.tryAuthenticateAsync(manager, wrapRequest(request));
+    }
+
+    @Override
+    public CompletionStage<AuthenticationRequest.Status> authenticateAsync(AuthenticationManager manager, AuthenticationRequest request) {
+        return delegateAuthenticator.authenticateAsync(manager, wrapRequest(request));
+    }
+
     @Override
     public AuthenticationRequest.ManageAction manage(AuthenticationManager manager, AuthenticationRequest request) {
         return delegateAuthenticator.manage(manager, wrapRequest(request));
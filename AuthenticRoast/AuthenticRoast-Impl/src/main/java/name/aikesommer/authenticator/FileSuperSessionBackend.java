@@ -0,0 +1,183 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A SuperSessionBackend keeping every SuperSession in a file of a directory,
+ * which can be shared by several nodes on one machine or through a network
+ * file-system. This is mostly meant for testing, as it neither expires
+ * entries nor scales well.
+ * Every file starts with the version of the SuperSession, followed by its
+ * serialized snapshot, so versions are compared without reading attributes
+ * whose classes might not be at hand.
+ * The directory is taken from the system property
+ * <code>roast.super-session.file.dir</code>, a directory in the temporary
+ * directory by default.
+ *
+ * @author Ratcash
+ */
+public class FileSuperSessionBackend implements SuperSessionBackend {
+
+    public static final String DIR_PROPERTY = "roast.super-session.file.dir";
+
+    private static final Logger log = Logger.getLogger(FileSuperSessionBackend.class.getName());
+
+    private final File dir;
+
+    public FileSuperSessionBackend() {
+        this(new File(System.getProperty(DIR_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), "roast-super-sessions").getPath())));
+    }
+
+    public FileSuperSessionBackend(File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("unable to create " + dir);
+        }
+    }
+
+    private File file(String key) {
+        // keys are created by us, but come back in a cookie
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                throw new IllegalArgumentException("invalid key " + key);
+            }
+        }
+        return new File(dir, key + ".ser");
+    }
+
+    public Snapshot load(String key) throws IOException {
+        File file;
+        try {
+            file = file(key);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+        try {
+            in.readLong();
+            ObjectInputStream objects = new RestrictedObjectInputStream(in,
+                    Thread.currentThread().getContextClassLoader());
+            return (Snapshot) objects.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        } catch (ClassCastException ex) {
+            throw new IOException(ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read only the version at the start of a file, so it can be compared
+     * without reading the attributes.
+     *
+     * @return The version or -1 if there is no file.
+     */
+    private static long version(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException ex) {
+            return -1;
+        }
+        try {
+            return in.readLong();
+        } catch (EOFException ex) {
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    public void store(Map<String, Snapshot> batch) throws IOException {
+        for (Map.Entry<String, Snapshot> entry : batch.entrySet()) {
+            if (!SuperSession.isValidKey(entry.getKey())) {
+                log.warning("not storing SuperSession with invalid key " + entry.getKey());
+                continue;
+            }
+            File target = file(entry.getKey());
+            if (version(target) >= entry.getValue().getVersion()) {
+                continue;
+            }
+            File temp = File.createTempFile("roast-", ".tmp", dir);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                try {
+                    out.writeLong(entry.getValue().getVersion());
+                    ObjectOutputStream objects = new ObjectOutputStream(out);
+                    objects.writeObject(entry.getValue());
+                    objects.flush();
+                } finally {
+                    out.close();
+                }
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                temp.delete();
+            }
+        }
+    }
+
+    public void remove(Collection<String> keys) throws IOException {
+        for (String key : keys) {
+            File file;
+            try {
+                file = file(key);
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            if (!file.delete() && file.exists()) {
+                throw new IOException("unable to delete " + file);
+            }
+        }
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A SuperSessionBackend keeping the SuperSessions of this node in an
+ * append-only journal on disk, so they survive restarts and redeployments.
+ * The journal is memory-mapped and every version of a SuperSession is
+ * appended as a record. Only the position and version of the latest record
+ * of every SuperSession are kept in memory; snapshots are read from the
+ * journal when they are loaded. Once superseded records take more space
+ * than live ones, the journal is compacted in the background by copying
+ * the live records to a new file. Records are copied as they are, so even
+ * those which cannot be read at the moment, eg because a class is missing,
+ * are kept. At startup the journal is replayed, which only reads the
+ * headers of the records and takes time proportional to its size.
+ * Records older than the maximum age are dropped on replay and compaction.
+ * Removing a SuperSession appends a record without a snapshot, which hides
+ * the earlier ones on replay.
+ * The journal is limited to 2GB, the most that can be mapped at once.
+ * The following system properties are used:
+ * <code>roast.super-session.journal.file</code> for the file,
+ * <code>roast.super-session.journal.size</code> for its initial size in bytes and
+ * <code>roast.super-session.journal.max-age</code> for the maximum age in seconds.
+ *
+ * @author Ratcash
+ */
+public class JournalSuperSessionBackend implements SuperSessionBackend {
+
+    public static final String FILE_PROPERTY = "roast.super-session.journal.file";
+
+    public static final String SIZE_PROPERTY = "roast.super-session.journal.size";
+
+    public static final String MAX_AGE_PROPERTY = "roast.super-session.journal.max-age";
+
+    private static final Logger log = Logger.getLogger(JournalSuperSessionBackend.class.getName());
+
+    /**
+     * Length and checksum preceding every record.
+     */
+    private static final int HEADER = 8;
+
+    /**
+     * Length of the key and version at the start of the data of a record,
+     * not counting the key itself.
+     */
+    private static final int PREFIX = 2 + 8;
+
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private final File file;
+
+    private final long maxAge;
+
+    /**
+     * The latest record of every SuperSession, guarded by this.
+     */
+    private final Map<String, Location> index = new HashMap<String, Location>();
+
+    private final ExecutorService compactor;
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private long garbage;
+
+    private long live;
+
+    public JournalSuperSessionBackend() throws IOException {
+        this(new File(System.getProperty(FILE_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), "roast-super-sessions.journal").getPath())),
+                Integer.getInteger(SIZE_PROPERTY, 16 * 1024 * 1024),
+                Long.getLong(MAX_AGE_PROPERTY, 24 * 60 * 60) * 1000);
+    }
+
+    /**
+     * Open a journal, replaying it if it exists.
+     *
+     * @param size The initial size of the journal in bytes.
+     * @param maxAge The time in milliseconds after which records are dropped.
+     */
+    public JournalSuperSessionBackend(File file, int size, long maxAge) throws IOException {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "roast-journal-compactor");
+                thread.setDaemon(true);
+                thread.setContextClassLoader(JournalSuperSessionBackend.class.getClassLoader());
+                return thread;
+            }
+        });
+        long started = System.currentTimeMillis();
+        open(Math.min(Math.max(size, file.length()), MAX_SIZE));
+        replay();
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("replayed " + index.size() + " SuperSessions from " + file + " in "
+                    + (System.currentTimeMillis() - started) + "ms");
+        }
+    }
+
+    private void open(long size) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private synchronized void replay() {
+        long oldest = System.currentTimeMillis() - maxAge;
+        while (buffer.remaining() >= HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < PREFIX || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            byte[] data = new byte[length];
+            buffer.get(data);
+            int keyLength = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+            if (checksum(data, 0, length) != checksum || keyLength > length - PREFIX) {
+                // a torn write at the end of the journal
+                log.warning("ignoring corrupt record at " + start + " in " + file);
+                buffer.position(start);
+                break;
+            }
+            String key = new String(data, 2, keyLength, StandardCharsets.UTF_8);
+            long version = ByteBuffer.wrap(data, 2 + keyLength, 8).getLong();
+            Location location = new Location(start, HEADER + length, version,
+                    length == PREFIX + keyLength);
+            Location previous = index.get(key);
+            if (previous != null && previous.version > version) {
+                garbage += location.size;
+                continue;
+            }
+            if (previous != null) {
+                index.remove(key);
+                garbage += previous.size;
+                live -= previous.size;
+            }
+            if (location.removed || version / 1000 < oldest) {
+                garbage += location.size;
+                continue;
+            }
+            index.put(key, location);
+            live += location.size;
+        }
+        // clear whatever follows, so a later replay does not pick it up
+        int end = buffer.position();
+        while (buffer.remaining() >= HEADER) {
+            buffer.putLong(0);
+        }
+        buffer.position(end);
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public Snapshot load(String key) throws IOException {
+        byte[] data;
+        synchronized (this) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            data = new byte[location.size - HEADER];
+            ByteBuffer view = buffer.duplicate();
+            view.position(location.position + HEADER);
+            view.get(data);
+        }
+        int offset = PREFIX + (((data[0] & 0xff) << 8) | (data[1] & 0xff));
+        ObjectInputStream in = new RestrictedObjectInputStream(
+                new ByteArrayInputStream(data, offset, data.length - offset),
+                Thread.currentThread().getContextClassLoader());
+        try {
+            return (Snapshot) in.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException(ex);
+        } catch (ClassCastException ex) {
+            throw new IOException(ex);
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void store(Map<String, Snapshot> batch) throws IOException {
+        for (Map.Entry<String, Snapshot> entry : batch.entrySet()) {
+            Location previous = index.get(entry.getKey());
+            if (previous != null && previous.version >= entry.getValue().getVersion()) {
+                continue;
+            }
+            put(entry.getKey(), append(entry.getKey(), entry.getValue().getVersion(), entry.getValue()));
+        }
+        buffer.force();
+        if (garbage > live && garbage > buffer.capacity() / 4 && compacting.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        log.log(Level.WARNING, "unable to compact " + file, ex);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    public synchronized void remove(Collection<String> keys) throws IOException {
+        boolean appended = false;
+        for (String key : keys) {
+            Location previous = index.get(key);
+            if (previous == null) {
+                continue;
+            }
+            Location tombstone = append(key, previous.version, null);
+            index.remove(key);
+            garbage += previous.size + tombstone.size;
+            live -= previous.size;
+            appended = true;
+        }
+        if (appended) {
+            buffer.force();
+        }
+    }
+
+    private void put(String key, Location location) {
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            garbage += previous.size;
+            live -= previous.size;
+        }
+        live += location.size;
+    }
+
+    /**
+     * Append a record, without a snapshot to mark the SuperSession as
+     * removed.
+     */
+    private Location append(String key, long version, Snapshot snapshot) throws IOException {
+        byte[] data = data(key, version, snapshot);
+        if (buffer.remaining() < HEADER + data.length + HEADER) {
+            compact();
+            if (buffer.remaining() < HEADER + data.length + HEADER) {
+                grow(HEADER + data.length + HEADER);
+            }
+        }
+        int position = buffer.position();
+        buffer.putInt(data.length);
+        buffer.putInt(checksum(data, 0, data.length));
+        buffer.put(data);
+        return new Location(position, HEADER + data.length, version, snapshot == null);
+    }
+
+    private static byte[] data(String key, long version, Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(keyBytes.length);
+        out.write(keyBytes);
+        out.writeLong(version);
+        if (snapshot != null) {
+            ObjectOutputStream objects = new ObjectOutputStream(out);
+            objects.writeObject(snapshot);
+            objects.close();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void grow(int needed) throws IOException {
+        int position = buffer.position();
+        if (position + (long) needed > MAX_SIZE) {
+            throw new IOException(file + " is full");
+        }
+        long size = buffer.capacity();
+        while (size - position < needed) {
+            size = Math.min(size * 2, MAX_SIZE);
+        }
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+    }
+
+    /**
+     * Copy all live records to a new journal and replace the current one
+     * with it.
+     */
+    synchronized void compact() throws IOException {
+        long oldest = System.currentTimeMillis() - maxAge;
+        File temp = new File(file.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        out.setLength(0);
+        long size = Math.min(Math.max(buffer.capacity(), 2 * (live + HEADER)), MAX_SIZE);
+        Map<String, Location> moved = new HashMap<String, Location>();
+        int end;
+        try {
+            MappedByteBuffer target = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            ByteBuffer source = buffer.duplicate();
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                if (location.version / 1000 < oldest) {
+                    continue;
+                }
+                source.limit(location.position + location.size);
+                source.position(location.position);
+                moved.put(entry.getKey(), new Location(target.position(), location.size, location.version, false));
+                target.put(source);
+            }
+            end = target.position();
+            target.force();
+        } finally {
+            out.close();
+        }
+        channel.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        open(size);
+        buffer.position(end);
+        index.clear();
+        index.putAll(moved);
+        live = end;
+        garbage = 0;
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("compacted " + file + " to " + index.size() + " SuperSessions");
+        }
+    }
+
+    public synchronized void close() {
+        compactor.shutdown();
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "unable to close " + file, ex);
+        }
+    }
+
+    /**
+     * Where the latest record of a SuperSession is found in the journal.
+     * A record looks like
+     * <code>[int length][int crc][short keyLength][key][long version][snapshot]</code>,
+     * without the snapshot if the SuperSession has been removed.
+     */
+    private static final class Location {
+
+        final int position;
+        final int size;
+        final long version;
+        final boolean removed;
+
+        Location(int position, int size, long version, boolean removed) {
+            this.position = position;
+            this.size = size;
+            this.version = version;
+            this.removed = removed;
+        }
+    }
+}
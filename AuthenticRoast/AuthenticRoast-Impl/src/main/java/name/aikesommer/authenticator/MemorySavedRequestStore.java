@@ -0,0 +1,195 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A SavedRequestStore keeping the requests in memory, identified by a
+ * cookie. Requests expire after a while and the number of requests is
+ * bounded, so abandoned logins do not pin memory until the session times
+ * out. The least recently used requests are evicted first, approximated
+ * with the CLOCK algorithm, so reading a request needs no locking.
+ * The requests are only visible to the node they have been saved on.
+ *
+ * @author Ratcash
+ */
+public class MemorySavedRequestStore implements SavedRequestStore {
+
+    /**
+     * Option holding the maximum number of saved requests.
+     */
+    public static final String MAX_ENTRIES_OPTION = "roast.saved-request.max-entries";
+
+    /**
+     * Option holding the time in seconds a saved request is kept.
+     */
+    public static final String TTL_OPTION = "roast.saved-request.ttl";
+
+    private static final String COOKIE_NAME = "ROAST_SR";
+
+    private static final String ID_NOTE = MemorySavedRequestStore.class.getName() + ".ID";
+
+    /**
+     * The number of entries checked for expiry on every put.
+     */
+    private static final int SWEEP_STEPS = 2;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final int maxEntries;
+
+    private final int ttl;
+
+    /**
+     * The hand of the clock, guarded by this.
+     */
+    private Iterator<Map.Entry<String, Entry>> hand;
+
+    public MemorySavedRequestStore() {
+        this(10000, 300);
+    }
+
+    /**
+     * @param maxEntries The maximum number of saved requests.
+     * @param ttl The time in seconds a saved request is kept.
+     */
+    public MemorySavedRequestStore(int maxEntries, int ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+    }
+
+    public static MemorySavedRequestStore fromOptions(Map<?, ?> options) {
+        Object maxEntries = options == null ? null : options.get(MAX_ENTRIES_OPTION);
+        Object ttl = options == null ? null : options.get(TTL_OPTION);
+        return new MemorySavedRequestStore(maxEntries == null ? 10000 : Integer.parseInt(maxEntries.toString()),
+                ttl == null ? 300 : Integer.parseInt(ttl.toString()));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private String id(AuthenticationRequest request, boolean create) {
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        String id = (String) httpRequest.getAttribute(ID_NOTE);
+        if (id == null) {
+            Cookie cookie = TokenCookies.find(httpRequest, COOKIE_NAME);
+            if (cookie != null) {
+                id = cookie.getValue();
+            } else if (create) {
+                id = TokenGenerator.getInstance().nextToken();
+                request.getHttpServletResponse().addCookie(TokenCookies.create(httpRequest, COOKIE_NAME, id, -1));
+            } else {
+                return null;
+            }
+            httpRequest.setAttribute(ID_NOTE, id);
+        }
+        return id;
+    }
+
+    public SavedRequest get(AuthenticationRequest request) {
+        String id = id(request, false);
+        Entry entry = id == null ? null : entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            if (entries.remove(id, entry)) {
+                entry.saved.discard(null);
+            }
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.saved;
+    }
+
+    public void put(AuthenticationRequest request, SavedRequest saved) {
+        Entry entry = new Entry(saved, System.currentTimeMillis() + ttl * 1000L);
+        Entry previous = entries.put(id(request, true), entry);
+        if (previous != null) {
+            previous.saved.discard(saved);
+        }
+        sweep();
+    }
+
+    public void remove(AuthenticationRequest request) {
+        String id = id(request, false);
+        Entry entry = id == null ? null : entries.remove(id);
+        if (entry != null) {
+            entry.saved.discard(null);
+        }
+    }
+
+    public boolean supportsBody(AuthenticationRequest request) {
+        return true;
+    }
+
+    /**
+     * Advance the clock, removing expired entries on the way, and evict
+     * entries not used since the last turn until the store has shrunk to
+     * its maximum size.
+     */
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        int steps = 0;
+        while (steps < SWEEP_STEPS || entries.size() > maxEntries) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            Map.Entry<String, Entry> current = hand.next();
+            Entry entry = current.getValue();
+            boolean evict = entry.expires < now || (entries.size() > maxEntries && !entry.referenced);
+            if (evict) {
+                if (entries.remove(current.getKey(), entry)) {
+                    entry.saved.discard(null);
+                }
+            } else {
+                entry.referenced = false;
+            }
+            steps++;
+        }
+    }
+
+    private static final class Entry {
+
+        final SavedRequest saved;
+        final long expires;
+        volatile boolean referenced;
+
+        Entry(SavedRequest saved, long expires) {
+            this.saved = saved;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * The request passed on to the application after a saved request has been
+ * restored. It has the method, headers and body of the saved request, the
+ * rest is taken from the current request.
+ * The body is released once it has been read completely or the stream has
+ * been closed, or when {@link #release()} is called.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class ReplayedRequest extends HttpServletRequestWrapper {
+
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private final SavedRequest saved;
+
+    private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    private Map<String, String[]> parameters;
+
+    private ServletInputStream stream;
+
+    private BufferedReader reader;
+
+    public ReplayedRequest(HttpServletRequest request, SavedRequest saved) {
+        super(request);
+        this.saved = saved;
+        this.headers.putAll(saved.getHeaders());
+    }
+
+    private SavedBody body() {
+        SavedBody body = saved.getBody();
+        return body != null && body.isAvailable() ? body : null;
+    }
+
+    /**
+     * Release the body of the saved request.
+     */
+    public void release() {
+        if (saved.getBody() != null) {
+            saved.getBody().release();
+        }
+    }
+
+    @Override
+    public String getMethod() {
+        return saved.getMethod();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        if (headers.containsKey(name)) {
+            return headers.get(name);
+        }
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            SavedBody body = body();
+            return body == null ? null : String.valueOf(body.getLength());
+        }
+        return super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        String value = getHeader(name);
+        if (value == null || headers.containsKey(name) || "Content-Length".equalsIgnoreCase(name)) {
+            return value == null ? Collections.<String>emptyEnumeration()
+                    : Collections.enumeration(Collections.singletonList(value));
+        }
+        return super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        List<String> names = new ArrayList<String>(headers.keySet());
+        for (Enumeration<String> e = super.getHeaderNames(); e.hasMoreElements();) {
+            String name = e.nextElement();
+            if (!headers.containsKey(name)) {
+                names.add(name);
+            }
+        }
+        return Collections.enumeration(names);
+    }
+
+    @Override
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    @Override
+    public int getContentLength() {
+        long length = getContentLengthLong();
+        return length > Integer.MAX_VALUE ? -1 : (int) length;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        SavedBody body = body();
+        return body == null ? -1 : body.getLength();
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (reader != null) {
+            throw new IllegalStateException("getReader() has already been called");
+        }
+        if (stream == null) {
+            SavedBody body = body();
+            stream = new BodyInputStream(body == null ? null : body.open());
+        }
+        return stream;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getInputStream() has already been called");
+            }
+            String encoding = getCharacterEncoding();
+            SavedBody body = body();
+            stream = new BodyInputStream(body == null ? null : body.open());
+            reader = new BufferedReader(new InputStreamReader(stream, encoding == null ? "ISO-8859-1" : encoding));
+        }
+        return reader;
+    }
+
+    private boolean isForm() {
+        String type = getContentType();
+        return "POST".equals(getMethod()) && type != null
+                && type.toLowerCase().startsWith(FORM_CONTENT_TYPE);
+    }
+
+    /**
+     * The parameters of a replayed form are those of the query-string and
+     * the saved body, as the container does not know about the latter.
+     */
+    private Map<String, String[]> parameters() {
+        if (parameters == null) {
+            if (!isForm() || body() == null || stream != null) {
+                parameters = super.getParameterMap();
+            } else {
+                Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                String encoding = getCharacterEncoding();
+                String charset = encoding == null ? "ISO-8859-1" : encoding;
+                try {
+                    RequestDescriptor.parse(values, getQueryString(), "UTF-8");
+                    InputStream in = body().open();
+                    try {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) body().getLength());
+                        byte[] buffer = new byte[8192];
+                        int read;
+                        while ((read = in.read(buffer)) >= 0) {
+                            bytes.write(buffer, 0, read);
+                        }
+                        RequestDescriptor.parse(values, bytes.toString("ISO-8859-1"), charset);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException ex) {
+                    throw new IllegalStateException("unable to read saved body", ex);
+                }
+                Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+                for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                    result.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+                }
+                parameters = Collections.unmodifiableMap(result);
+            }
+        }
+        return parameters;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters().get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters();
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters().keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return parameters().get(name);
+    }
+
+    /**
+     * Streams the saved body and releases it once it is done.
+     */
+    private class BodyInputStream extends ServletInputStream {
+
+        private final InputStream in;
+
+        private boolean finished;
+
+        BodyInputStream(InputStream in) {
+            this.in = in;
+            this.finished = in == null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (finished) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                close();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            int read = in.read(b, off, len);
+            if (read < 0) {
+                close();
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                finished = true;
+                in.close();
+                release();
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            throw new IllegalStateException("the body of a replayed request can only be read blocking");
+        }
+    }
+}
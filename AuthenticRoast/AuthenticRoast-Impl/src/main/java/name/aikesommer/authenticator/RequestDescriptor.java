@@ -0,0 +1,158 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The parts of a request authenticators look at again and again, computed
+ * once per request and shared by all authenticators handling it.
+ * Instances are immutable and kept as a request attribute, see
+ * {@link #of(HttpServletRequest)}.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public final class RequestDescriptor {
+
+    private static final String DESCRIPTOR_NOTE = RequestDescriptor.class.getName();
+
+    private final String requestURI;
+    private final String contextPath;
+    private final String path;
+    private final String queryString;
+    private volatile Map<String, List<String>> queryParameters;
+
+    private RequestDescriptor(HttpServletRequest request) {
+        this.requestURI = request.getRequestURI();
+        this.contextPath = request.getContextPath();
+        if (!requestURI.startsWith(contextPath)) {
+            throw new IllegalArgumentException(requestURI);
+        }
+        this.path = requestURI.substring(contextPath.length());
+        this.queryString = request.getQueryString();
+    }
+
+    /**
+     * Get the descriptor for request, computing it only if it has not been
+     * computed yet or the request has been dispatched to a different path
+     * since.
+     */
+    public static RequestDescriptor of(HttpServletRequest request) {
+        RequestDescriptor descriptor = (RequestDescriptor) request.getAttribute(DESCRIPTOR_NOTE);
+        if (descriptor == null || !descriptor.requestURI.equals(request.getRequestURI())) {
+            descriptor = new RequestDescriptor(request);
+            request.setAttribute(DESCRIPTOR_NOTE, descriptor);
+        }
+        return descriptor;
+    }
+
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    /**
+     * Get the path of the request, starting after the context-path and
+     * excluding any parameters.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * Get the decoded parameters of the query-string only, as opposed to
+     * getParameter() this never reads the body of a form post. These are
+     * parsed the first time they are needed, as UTF-8 like the URIs
+     * produced by this library; the character encoding of the request
+     * applies to its body only.
+     */
+    public Map<String, List<String>> getQueryParameters() {
+        Map<String, List<String>> parameters = queryParameters;
+        if (parameters == null) {
+            Map<String, List<String>> parsed = new LinkedHashMap<String, List<String>>();
+            try {
+                parse(parsed, queryString, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalStateException(ex);
+            }
+            for (Map.Entry<String, List<String>> entry : parsed.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            parameters = Collections.unmodifiableMap(parsed);
+            queryParameters = parameters;
+        }
+        return parameters;
+    }
+
+    public String getQueryParameter(String name) {
+        List<String> values = getQueryParameters().get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Parse form-encoded parameters into values, skipping any that are
+     * not properly encoded.
+     */
+    static void parse(Map<String, List<String>> values, String encoded, String encoding)
+            throws UnsupportedEncodingException {
+        if (encoded == null || encoded.length() == 0) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            if (pair.length() == 0) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            String name;
+            String value;
+            try {
+                name = URLDecoder.decode(separator < 0 ? pair : pair.substring(0, separator), encoding);
+                value = separator < 0 ? "" : URLDecoder.decode(pair.substring(separator + 1), encoding);
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            List<String> list = values.get(name);
+            if (list == null) {
+                list = new ArrayList<String>(1);
+                values.put(name, list);
+            }
+            list.add(value);
+        }
+    }
+}
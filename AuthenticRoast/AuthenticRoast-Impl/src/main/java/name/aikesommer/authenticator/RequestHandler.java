@@ -23,72 +23,404 @@
  */
 package name.aikesommer.authenticator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * This class takes care of storing and restoring the original request, that
  * led to the authentication being started.
+ * The request is kept in a {@link SavedRequestStore}, the session by
+ * default.
+ * Requests other than GET are saved with their method, some of their
+ * headers and their body, so they can be replayed once the login is
+ * complete. This is only done if the store can hold the body.
+ * In state mode, the request is not put into the store before the login.
+ * It is carried in a signed, expiring parameter instead, which the
+ * login-page has to pass on in the query-string of its form action, named
+ * {@link #STATE_PARAMETER}. It is never read from the body, so the body
+ * of a request to be saved is left alone. Only once the credentials have been verified
+ * and the request is modified, it is put into the store.
  * It is used internally only.
  *
  * @author Aike J Sommer
  */
 public class RequestHandler {
 
-    private static final String REQUEST_CONTEXT_NOTE = RequestHandler.class.getName() + ".REQUEST_CONTEXT";
-    private static final String REQUEST_PATH_NOTE = RequestHandler.class.getName() + ".REQUEST_PATH";
-    private static final String REQUEST_QUERY_NOTE = RequestHandler.class.getName() + ".REQUEST_QUERY";
-    private static final String REQUEST_ADD_QUERY_NOTE = RequestHandler.class.getName() + ".REQUEST_ADD_QUERY";
+    /**
+     * Option holding the maximum length of a body to save, 0 disables saving
+     * bodies.
+     */
+    public static final String MAX_BODY_OPTION = "roast.saved-request.max-body";
 
-    private Map<String, Object> session(AuthenticationRequest request) {
-        return request.getAuthenticationMap();
+    /**
+     * Option holding the maximum length of a body kept in memory, longer
+     * ones are written to a temporary file.
+     */
+    public static final String MEMORY_THRESHOLD_OPTION = "roast.saved-request.memory-threshold";
+
+    /**
+     * Option holding the maximum memory used by all bodies kept in memory.
+     */
+    public static final String MEMORY_LIMIT_OPTION = "roast.saved-request.memory-limit";
+
+    /**
+     * Option holding the maximum size of all bodies written to temporary
+     * files, bodies exceeding it are not saved.
+     */
+    public static final String DISK_LIMIT_OPTION = "roast.saved-request.disk-limit";
+
+    /**
+     * Option holding the comma-separated names of the headers to save.
+     */
+    public static final String HEADERS_OPTION = "roast.saved-request.headers";
+
+    /**
+     * Option to select where the request is saved before the login, either
+     * <code>session</code> (the default) or <code>state</code>. The latter
+     * needs the keys given in {@link TokenCodec#KEYS_OPTION}.
+     */
+    public static final String MODE_OPTION = "roast.saved-request.mode";
+
+    /**
+     * Option holding the time in seconds a state-parameter stays valid.
+     */
+    public static final String STATE_TTL_OPTION = "roast.saved-request.state-ttl";
+
+    /**
+     * Option selecting the SavedRequestStore, see {@link SavedRequestStore}.
+     */
+    public static final String STORE_OPTION = "roast.saved-request.store";
+
+    /**
+     * The name of the parameter carrying the saved request in state mode.
+     */
+    public static final String STATE_PARAMETER = "roast_state";
+
+    private static final Logger log = Logger.getLogger(RequestHandler.class.getName());
+
+    private static final String STATE_NOTE = RequestHandler.class.getName() + ".STATE";
+
+    private static final byte STATE_VERSION = 2;
+
+    private static final String STATE_PURPOSE = "state";
+
+    private static final String REPLAY_NOTE = RequestHandler.class.getName() + ".REPLAY";
+
+    private final long maxBody;
+
+    private final int memoryThreshold;
+
+    private final long memoryLimit;
+
+    private final long diskLimit;
+
+    private final String[] headers;
+
+    private final TokenCodec codec;
+
+    private final int stateTtl;
+
+    private final SavedRequestStore store;
+
+    public RequestHandler() {
+        this(1024 * 1024, 64 * 1024, 16 * 1024 * 1024, 64 * 1024 * 1024,
+                new String[] { "Content-Type", "Content-Encoding", "Content-Language", "Accept",
+                    "Accept-Language", "X-Requested-With" });
+    }
+
+    public RequestHandler(long maxBody, int memoryThreshold, long memoryLimit, long diskLimit,
+            String[] headers) {
+        this(maxBody, memoryThreshold, memoryLimit, diskLimit, headers, null, 0, new SessionSavedRequestStore());
+    }
+
+    /**
+     * Create a handler.
+     *
+     * @param codec The codec for state mode or null to use the store only.
+     * @param stateTtl The time in seconds a state-parameter stays valid.
+     * @param store The store for saved requests.
+     */
+    public RequestHandler(long maxBody, int memoryThreshold, long memoryLimit, long diskLimit,
+            String[] headers, TokenCodec codec, int stateTtl, SavedRequestStore store) {
+        this.maxBody = maxBody;
+        this.memoryThreshold = memoryThreshold;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+        this.headers = headers;
+        this.codec = codec;
+        this.stateTtl = stateTtl;
+        this.store = store;
+    }
+
+    /**
+     * Create a handler from module options, using the defaults for those
+     * that are missing.
+     */
+    public static RequestHandler fromOptions(Map<?, ?> options) {
+        RequestHandler defaults = new RequestHandler();
+        if (options == null) {
+            return defaults;
+        }
+        Object maxBody = options.get(MAX_BODY_OPTION);
+        Object memoryThreshold = options.get(MEMORY_THRESHOLD_OPTION);
+        Object memoryLimit = options.get(MEMORY_LIMIT_OPTION);
+        Object diskLimit = options.get(DISK_LIMIT_OPTION);
+        Object headers = options.get(HEADERS_OPTION);
+        Object stateTtl = options.get(STATE_TTL_OPTION);
+        TokenCodec codec = null;
+        if ("state".equals(options.get(MODE_OPTION))) {
+            codec = TokenCodec.fromOptions(options);
+            if (codec == null) {
+                throw new IllegalArgumentException("state mode needs " + TokenCodec.KEYS_OPTION);
+            }
+        }
+        return new RequestHandler(
+                maxBody == null ? defaults.maxBody : Long.parseLong(maxBody.toString()),
+                memoryThreshold == null ? defaults.memoryThreshold : Integer.parseInt(memoryThreshold.toString()),
+                memoryLimit == null ? defaults.memoryLimit : Long.parseLong(memoryLimit.toString()),
+                diskLimit == null ? defaults.diskLimit : Long.parseLong(diskLimit.toString()),
+                headers == null ? defaults.headers : headers.toString().trim().split("\\s*,\\s*"),
+                codec, stateTtl == null ? 600 : Integer.parseInt(stateTtl.toString()),
+                createStore(options));
+    }
+
+    private static SavedRequestStore createStore(Map<?, ?> options) {
+        Object store = options.get(STORE_OPTION);
+        if (store == null || "session".equals(store)) {
+            return new SessionSavedRequestStore();
+        } else if ("memory".equals(store)) {
+            return MemorySavedRequestStore.fromOptions(options);
+        }
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            return Class.forName(store.toString(), true, loader == null ? RequestHandler.class.getClassLoader() : loader)
+                    .asSubclass(SavedRequestStore.class).getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("unable to create SavedRequestStore " + store, ex);
+        }
+    }
+
+    private SavedRequest load(AuthenticationRequest request) {
+        SavedRequest saved = store.get(request);
+        if (saved != null || codec == null) {
+            return saved;
+        }
+        return state(request).saved;
+    }
+
+    /**
+     * Get the state of the current request, decoding the state-parameter
+     * the first time.
+     */
+    private State state(AuthenticationRequest request) {
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        State state = (State) httpRequest.getAttribute(STATE_NOTE);
+        if (state == null) {
+            String token = RequestDescriptor.of(httpRequest).getQueryParameter(STATE_PARAMETER);
+            SavedRequest saved = token == null ? null : decodeState(codec.decode(STATE_PURPOSE, token));
+            state = new State(saved, saved == null ? null : token);
+            httpRequest.setAttribute(STATE_NOTE, state);
+        }
+        return state;
+    }
+
+    private void setState(AuthenticationRequest request, State state) {
+        if (codec != null) {
+            request.getHttpServletRequest().setAttribute(STATE_NOTE, state);
+        }
+    }
+
+    /**
+     * Get the state-parameter to pass on to the next request.
+     *
+     * @return The encoded state or null if there is none or the request is
+     *         kept in the store.
+     */
+    public String getState(AuthenticationRequest request) {
+        if (codec == null) {
+            return null;
+        }
+        State state = (State) request.getHttpServletRequest().getAttribute(STATE_NOTE);
+        if (state == null || state.saved == null) {
+            return null;
+        }
+        if (state.token == null) {
+            state.token = codec.encode(STATE_PURPOSE, encodeState(state.saved, System.currentTimeMillis() + stateTtl * 1000L));
+        }
+        return state.token;
+    }
+
+    private static byte[] encodeState(SavedRequest saved, long expires) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(STATE_VERSION);
+            out.writeLong(expires);
+            SavedRequest.writeText(out, saved.getContext());
+            SavedRequest.writeText(out, saved.getPath());
+            SavedRequest.writeString(out, saved.getQuery());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static SavedRequest decodeState(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != STATE_VERSION || in.readLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            String context = SavedRequest.readText(in);
+            String path = SavedRequest.readText(in);
+            String query = SavedRequest.readString(in);
+            if (in.available() > 0) {
+                return null;
+            }
+            return new SavedRequest(context, path, query, Collections.<String>emptyList());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void store(AuthenticationRequest request, String context, String path, String query,
+            String method, Map<String, String> headers, SavedBody body) {
+        SavedRequest saved = load(request);
+        setState(request, State.NONE);
+        store.put(request, saved == null
+                ? new SavedRequest(context, path, query, Collections.<String>emptyList(), method, headers, body)
+                : saved.withRequest(context, path, query, method, headers, body));
     }
 
     public void saveRequest(ModifiableRequest request) {
-        session(request).put(REQUEST_CONTEXT_NOTE, request.getOriginalContext().getContextPath());
-        session(request).put(REQUEST_PATH_NOTE, request.getRequestPath());
-        session(request).put(REQUEST_QUERY_NOTE, request.getHttpServletRequest().getQueryString());
+        HttpServletRequest httpRequest = request.getHttpServletRequest();
+        if (codec != null) {
+            /**
+             * In state mode nothing is written to the store before the
+             * login, the request is passed on with the next forward.
+             */
+            store.remove(request);
+            setState(request, new State(new SavedRequest(request.getOriginalContext().getContextPath(),
+                    request.getRequestPath(), httpRequest.getQueryString(),
+                    Collections.<String>emptyList()), null));
+            return;
+        }
+        String method = httpRequest.getMethod();
+        Map<String, String> saved = Collections.emptyMap();
+        SavedBody body = null;
+        if (!"GET".equals(method) && !"HEAD".equals(method)
+                && store.supportsBody(request)) {
+            saved = new LinkedHashMap<String, String>();
+            for (String name : headers) {
+                String value = httpRequest.getHeader(name);
+                if (value != null) {
+                    saved.put(name, value);
+                }
+            }
+            body = captureBody(httpRequest);
+            if (body == null) {
+                // without its body the request cannot be replayed
+                method = null;
+                saved = Collections.emptyMap();
+            }
+        } else {
+            method = null;
+        }
+        store(request, request.getOriginalContext().getContextPath(), request.getRequestPath(),
+                httpRequest.getQueryString(), method, saved, body);
+    }
+
+    private SavedBody captureBody(HttpServletRequest request) {
+        long length = request.getContentLengthLong();
+        if (maxBody <= 0 || length > maxBody) {
+            return null;
+        }
+        try {
+            SavedBody body = SavedBody.capture(request.getInputStream(), maxBody, memoryThreshold, memoryLimit,
+                    diskLimit);
+            if (body != null && length > 0 && body.getLength() < length) {
+                // the body has already been consumed, eg by reading parameters
+                body.release();
+                return null;
+            }
+            return body;
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "unable to save the body of the request", ex);
+            return null;
+        } catch (IllegalStateException ex) {
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "the body of the request has already been read", ex);
+            }
+            return null;
+        }
     }
 
     public void saveRequest(ModifiableRequest request, String path) {
-        session(request).put(REQUEST_CONTEXT_NOTE, request.getOriginalContext().getContextPath());
-        session(request).put(REQUEST_PATH_NOTE, path);
-        session(request).put(REQUEST_QUERY_NOTE, "");
+        store(request, request.getOriginalContext().getContextPath(), path, "", null,
+                Collections.<String, String>emptyMap(), null);
+    }
+
+    /**
+     * Move a request carried in the state-parameter into the store. This
+     * is done once the credentials have been verified, before redirecting
+     * to the saved request.
+     */
+    public void persist(AuthenticationRequest request) {
+        if (codec == null || store.get(request) != null) {
+            return;
+        }
+        SavedRequest saved = state(request).saved;
+        if (saved != null) {
+            setState(request, State.NONE);
+            store.put(request, saved);
+        }
     }
 
     public void clearRequest(AuthenticationRequest request) {
-        session(request).remove(REQUEST_CONTEXT_NOTE);
-        session(request).remove(REQUEST_PATH_NOTE);
-        session(request).remove(REQUEST_QUERY_NOTE);
+        store.remove(request);
+        setState(request, State.NONE);
     }
 
     public String getContextForRequest(AuthenticationRequest request) {
-        String context = (String) session(request).get(REQUEST_CONTEXT_NOTE);
-        return context;
+        SavedRequest saved = load(request);
+        return saved == null ? null : saved.getContext();
     }
 
     public String getPathForRequest(AuthenticationRequest request) {
-        String path = (String) session(request).get(REQUEST_PATH_NOTE);
-        String query = (String) session(request).get(REQUEST_QUERY_NOTE);
-
-        List<String> addQuery = (List<String>) session(request).get(REQUEST_ADD_QUERY_NOTE);
-        if (addQuery != null) {
-            for (String q : addQuery) {
-                query = query == null ? q : (query + "&" + q);
-            }
+        SavedRequest saved = load(request);
+        if (saved == null || saved.getPath() == null) {
+            return null;
         }
 
-        if (path != null) {
-            return path + (query == null ? "" : ("?" + query));
+        String query = saved.getQuery();
+        for (String q : saved.getAddQuery()) {
+            query = query == null ? q : (query + "&" + q);
         }
-        return null;
+
+        return saved.getPath() + (query == null ? "" : ("?" + query));
     }
 
     public boolean matchesRequest(ModifiableRequest request) {
-        String originalPath = (String) session(request).get(REQUEST_PATH_NOTE);
+        SavedRequest saved = load(request);
+        if (saved == null) {
+            return false;
+        }
+        String originalPath = saved.getPath();
         String path = request.getRequestPath();
-        String originalContext = (String) session(request).get(REQUEST_CONTEXT_NOTE);
+        String originalContext = saved.getContext();
         String context = request.getOriginalContext().getContextPath();
 
         if (originalPath != null && originalContext != null) {
@@ -99,16 +431,56 @@ public class RequestHandler {
     }
 
     public void restoreRequest(AuthenticationRequest request) {
+        SavedRequest saved = load(request);
+        if (saved != null && saved.isReplayable()) {
+            if (saved.getBody() != null) {
+                saved.getBody().claim();
+            }
+            request.getHttpServletRequest().setAttribute(REPLAY_NOTE, saved);
+        }
         clearRequest(request);
     }
 
-    public void addQueryString(AuthenticationRequest request, String queryString) {
-        List<String> addQuery = (List) session(request).get(REQUEST_ADD_QUERY_NOTE);
-        if (addQuery == null) {
-            addQuery = new ArrayList<String>();
-            session(request).put(REQUEST_ADD_QUERY_NOTE, addQuery);
+    /**
+     * Get the request to pass on to the application instead of request,
+     * if a saved request has been restored during this request.
+     *
+     * @return The replayed request or null if there is nothing to replay.
+     */
+    public static ReplayedRequest getReplayedRequest(HttpServletRequest request) {
+        SavedRequest saved = (SavedRequest) request.getAttribute(REPLAY_NOTE);
+        if (saved == null) {
+            return null;
         }
-        addQuery.add(queryString);
+        request.removeAttribute(REPLAY_NOTE);
+        return new ReplayedRequest(request, saved);
+    }
+
+    public void addQueryString(AuthenticationRequest request, String queryString) {
+        SavedRequest saved = load(request);
+        setState(request, State.NONE);
+        store.put(request, saved == null
+                ? new SavedRequest(null, null, null, Collections.singletonList(queryString))
+                : saved.withAddedQuery(queryString));
     }
 
+    /**
+     * The saved request of the current request in state mode.
+     */
+    private static final class State {
+
+        static final State NONE = new State(null, null);
+
+        final SavedRequest saved;
+
+        /**
+         * The encoded state, null as long as it has not been encoded.
+         */
+        String token;
+
+        State(SavedRequest saved, String token) {
+            this.saved = saved;
+            this.token = token;
+        }
+    }
 }
@@ -0,0 +1,83 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * An ObjectInputStream only accepting the types we expect to read back
+ * ourselves, ie the ones from java.lang, java.util and this library.
+ * It is used for data written by us, which might still have been tampered
+ * with outside of the JVM.
+ * If an application class-loader is given, the classes defined by it are
+ * accepted as well and resolved through it, so attributes an application
+ * has put into a SuperSession can be read back.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+class RestrictedObjectInputStream extends ObjectInputStream {
+
+    private final ClassLoader application;
+
+    RestrictedObjectInputStream(InputStream in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * @param application The class-loader of the application reading or
+     *                    null to accept only the types of the platform and
+     *                    this library.
+     */
+    RestrictedObjectInputStream(InputStream in, ClassLoader application) throws IOException {
+        super(in);
+        /** the loader of this library is not an application's */
+        this.application = application == RestrictedObjectInputStream.class.getClassLoader() ? null : application;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        String name = desc.getName();
+        String element = name.replaceFirst("^\\[+L?", "");
+        if (element.length() <= 1 || element.startsWith("java.lang.") || element.startsWith("java.util.")
+                || element.startsWith("name.aikesommer.authenticator.")) {
+            return super.resolveClass(desc);
+        }
+        if (application != null) {
+            Class<?> c = Class.forName(name, false, application);
+            Class<?> e = c;
+            while (e.isArray()) {
+                e = e.getComponentType();
+            }
+            if (e.getClassLoader() == application) {
+                return c;
+            }
+        }
+        throw new InvalidClassException(name, "not allowed to be read back");
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The body of a saved request. Small bodies are kept in memory as long as
+ * the total memory used by all saved bodies stays below a limit, everything
+ * else is written to a temporary file as long as the total size of these
+ * stays below another limit. Bodies exceeding both are not saved.
+ * A body has to be released once it is not needed anymore, which frees the
+ * memory or deletes the file.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public final class SavedBody implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = Logger.getLogger(SavedBody.class.getName());
+
+    private static final AtomicLong memoryUsed = new AtomicLong();
+
+    private static final AtomicLong diskUsed = new AtomicLong();
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private byte[] data;
+
+    private File file;
+
+    private long length;
+
+    /**
+     * The limit the body has been captured with, used to account for it
+     * again when it is deserialized.
+     */
+    private long limit;
+
+    private transient AtomicBoolean released = new AtomicBoolean();
+
+    private transient volatile boolean claimed;
+
+    private SavedBody(byte[] data, File file, long length, long limit) {
+        this.data = data;
+        this.file = file;
+        this.length = length;
+        this.limit = limit;
+    }
+
+    /**
+     * Read the body from in.
+     *
+     * @param maxLength The maximum length of the body.
+     * @param memoryThreshold Bodies up to this length are kept in memory.
+     * @param memoryLimit The maximum memory used by all bodies kept in memory.
+     * @param diskLimit The maximum size of all bodies written to files.
+     * @return The body or null if it is longer than maxLength or would
+     *         exceed the limits.
+     */
+    public static SavedBody capture(InputStream in, long maxLength, int memoryThreshold,
+            long memoryLimit, long diskLimit) throws IOException {
+        ByteArrayOutputStream memory = new ByteArrayOutputStream(Math.min(memoryThreshold, CHUNK_SIZE));
+        OutputStream out = memory;
+        File file = null;
+        long reserved = 0;
+        long reservedDisk = 0;
+        long length = 0;
+        SavedBody body = null;
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                length += read;
+                if (length > maxLength) {
+                    return null;
+                }
+                if (file == null && !(length <= memoryThreshold && reserve(memoryUsed, read, memoryLimit))) {
+                    if (!reserve(diskUsed, length, diskLimit)) {
+                        log.fine("not saving body, the limit for temporary files has been reached");
+                        return null;
+                    }
+                    reservedDisk = length;
+                    file = File.createTempFile("roast-body", ".tmp");
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                    memory = null;
+                    memoryUsed.addAndGet(-reserved);
+                    reserved = 0;
+                } else if (file == null) {
+                    reserved += read;
+                } else {
+                    if (!reserve(diskUsed, read, diskLimit)) {
+                        log.fine("not saving body, the limit for temporary files has been reached");
+                        return null;
+                    }
+                    reservedDisk += read;
+                }
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            body = file == null ? new SavedBody(memory.toByteArray(), null, length, memoryLimit)
+                    : new SavedBody(null, file, length, diskLimit);
+            return body;
+        } finally {
+            if (body == null) {
+                memoryUsed.addAndGet(-reserved);
+                diskUsed.addAndGet(-reservedDisk);
+                if (file != null) {
+                    out.close();
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    private static boolean reserve(AtomicLong counter, long bytes, long limit) {
+        long used;
+        do {
+            used = counter.get();
+            if (used + bytes > limit) {
+                return false;
+            }
+        } while (!counter.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warning("unable to delete " + file);
+        }
+    }
+
+    /**
+     * Get the memory currently used by all bodies kept in memory.
+     */
+    public static long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    /**
+     * Get the size of all bodies currently written to files.
+     */
+    public static long getDiskUsed() {
+        return diskUsed.get();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Get whether the body is still available, a body written to a file is
+     * not available on other nodes.
+     */
+    public boolean isAvailable() {
+        return !released.get() && (data != null || file.isFile());
+    }
+
+    public InputStream open() throws IOException {
+        if (released.get()) {
+            throw new IOException("body has already been released");
+        }
+        return data != null ? new ByteArrayInputStream(data) : new FileInputStream(file);
+    }
+
+    /**
+     * Mark the body as being replayed, so it is not released when it is
+     * removed from the session.
+     */
+    public void claim() {
+        claimed = true;
+    }
+
+    public boolean isClaimed() {
+        return claimed;
+    }
+
+    /**
+     * Free the memory or delete the file used by this body. This can safely
+     * be called more than once.
+     */
+    public void release() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (data != null) {
+            memoryUsed.addAndGet(-data.length);
+        } else {
+            delete(file);
+            diskUsed.addAndGet(-length);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("released saved body of " + length + " bytes");
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        released = new AtomicBoolean();
+        /**
+         * A body that does not fit anymore, or whose file is not there, is
+         * treated as released, so it is neither replayed nor accounted for.
+         */
+        if (data != null ? !reserve(memoryUsed, data.length, limit)
+                : !(file.isFile() && reserve(diskUsed, length, limit))) {
+            data = null;
+            released.set(true);
+        }
+    }
+}
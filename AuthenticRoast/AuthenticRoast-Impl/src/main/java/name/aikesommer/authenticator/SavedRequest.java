@@ -0,0 +1,264 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+/**
+ * The request saved by the RequestHandler, kept as a single value in the
+ * authentication-map. Instances are never changed once they are stored, a
+ * modified copy is stored instead, so every change is a single write that
+ * is noticed by replicating session-managers.
+ * Besides the location, the method, some headers and the body of the
+ * request can be kept, so it can be replayed after the login. The body is
+ * released once the request is removed from the session, unless it is
+ * being replayed.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public final class SavedRequest implements Externalizable, HttpSessionBindingListener {
+
+    private static final long serialVersionUID = 2L;
+
+    private String context;
+    private String path;
+    private String query;
+    private List<String> addQuery;
+    private String method;
+    private Map<String, String> headers;
+    private SavedBody body;
+
+    /**
+     * Only used for deserialization.
+     */
+    public SavedRequest() {
+        this.addQuery = Collections.emptyList();
+        this.headers = Collections.emptyMap();
+    }
+
+    public SavedRequest(String context, String path, String query, List<String> addQuery) {
+        this(context, path, query, addQuery, null, Collections.<String, String>emptyMap(), null);
+    }
+
+    /**
+     * Create a saved request.
+     *
+     * @param method The method to replay or null for a plain redirect.
+     * @param headers The headers to replay.
+     * @param body The body to replay or null.
+     */
+    public SavedRequest(String context, String path, String query, List<String> addQuery,
+            String method, Map<String, String> headers, SavedBody body) {
+        this.context = context;
+        this.path = path;
+        this.query = query;
+        this.addQuery = addQuery.isEmpty() ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<String>(addQuery));
+        this.method = method;
+        this.headers = headers.isEmpty() ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+        this.body = body;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public List<String> getAddQuery() {
+        return addQuery;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public SavedBody getBody() {
+        return body;
+    }
+
+    /**
+     * Get whether there is more to replay than the location.
+     */
+    public boolean isReplayable() {
+        return method != null && !"GET".equals(method);
+    }
+
+    /**
+     * Get a copy of this with a different request, keeping the added
+     * query-strings.
+     */
+    public SavedRequest withRequest(String context, String path, String query, String method,
+            Map<String, String> headers, SavedBody body) {
+        return new SavedRequest(context, path, query, addQuery, method, headers, body);
+    }
+
+    /**
+     * Get a copy of this with queryString added.
+     */
+    public SavedRequest withAddedQuery(String queryString) {
+        List<String> added = new ArrayList<String>(addQuery.size() + 1);
+        added.addAll(addQuery);
+        added.add(queryString);
+        return new SavedRequest(context, path, query, added, method, headers, body);
+    }
+
+    public void valueBound(HttpSessionBindingEvent event) {
+    }
+
+    /**
+     * Release the body, unless it has been handed on to the copy replacing
+     * this or is being replayed.
+     */
+    public void valueUnbound(HttpSessionBindingEvent event) {
+        Object current = null;
+        try {
+            current = event.getSession().getAttribute(event.getName());
+        } catch (IllegalStateException ex) {
+            // the session has been invalidated
+        }
+        discard(current instanceof SavedRequest ? (SavedRequest) current : null);
+    }
+
+    /**
+     * Called once this has been removed from its store.
+     *
+     * @param replacement The request replacing this or null.
+     */
+    public void discard(SavedRequest replacement) {
+        if (body == null || body.isClaimed()) {
+            return;
+        }
+        if (replacement == null || replacement.body != body) {
+            body.release();
+        }
+    }
+
+    /**
+     * Strings are written as length-prefixed UTF-8, as writeUTF() cannot
+     * hold more than 64KB, which a query-string or header can exceed.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeString(out, context);
+        writeString(out, path);
+        writeString(out, query);
+        out.writeInt(addQuery.size());
+        for (String q : addQuery) {
+            writeText(out, q);
+        }
+        writeString(out, method);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeText(out, header.getKey());
+            writeText(out, header.getValue());
+        }
+        out.writeObject(body);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        context = readString(in);
+        path = readString(in);
+        query = readString(in);
+        int count = readCount(in);
+        if (count > 0) {
+            List<String> added = new ArrayList<String>(Math.min(count, 16));
+            for (int i = 0; i < count; i++) {
+                added.add(readText(in));
+            }
+            addQuery = Collections.unmodifiableList(added);
+        }
+        method = readString(in);
+        count = readCount(in);
+        if (count > 0) {
+            Map<String, String> read = new LinkedHashMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                read.put(readText(in), readText(in));
+            }
+            headers = Collections.unmodifiableMap(read);
+        }
+        body = (SavedBody) in.readObject();
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("invalid count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Write value, which may be null, as UTF-8 prefixed by its length, so
+     * there is no limit on its length like with writeUTF().
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeText(out, value);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? readText(in) : null;
+    }
+
+    static void writeText(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInput in) throws IOException {
+        int length = readCount(in);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+/**
+ * The SavedRequestStore is used by the RequestHandler to keep the request
+ * that led to the authentication across the requests of a login. The
+ * default implementation keeps it in the authentication-map, which usually
+ * is the HttpSession.
+ * A different store can be selected with the module option
+ * <code>roast.saved-request.store</code>, which takes either
+ * <code>session</code>, <code>memory</code> or the name of a class
+ * implementing this interface with a public no-arg constructor.
+ *
+ * @author Ratcash
+ */
+public interface SavedRequestStore {
+
+    /**
+     * Get the saved request for the client of request.
+     *
+     * @return The saved request or null if there is none.
+     */
+    SavedRequest get(AuthenticationRequest request);
+
+    /**
+     * Save a request for the client of request, replacing any previous one.
+     * The store is responsible for calling {@link SavedRequest#discard(SavedRequest)}
+     * on the request it replaces.
+     */
+    void put(AuthenticationRequest request, SavedRequest saved);
+
+    /**
+     * Remove the saved request for the client of request.
+     */
+    void remove(AuthenticationRequest request);
+
+    /**
+     * Get whether saved requests for request may have a body, which is not
+     * possible if the store cannot hold large values.
+     */
+    boolean supportsBody(AuthenticationRequest request);
+
+}
@@ -0,0 +1,56 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+/**
+ * The default SavedRequestStore, keeping the request in the
+ * authentication-map. Bodies are released by the SavedRequest itself when
+ * it is removed from the session.
+ *
+ * @author Ratcash
+ */
+public class SessionSavedRequestStore implements SavedRequestStore {
+
+    /**
+     * Everything is kept in a single SavedRequest under this short key, so
+     * every change is a single, small write.
+     */
+    private static final String SAVED_REQUEST_NOTE = "roast.saved-request";
+
+    public SavedRequest get(AuthenticationRequest request) {
+        return (SavedRequest) request.getAuthenticationMap().get(SAVED_REQUEST_NOTE);
+    }
+
+    public void put(AuthenticationRequest request, SavedRequest saved) {
+        request.getAuthenticationMap().put(SAVED_REQUEST_NOTE, saved);
+    }
+
+    public void remove(AuthenticationRequest request) {
+        request.getAuthenticationMap().remove(SAVED_REQUEST_NOTE);
+    }
+
+    public boolean supportsBody(AuthenticationRequest request) {
+        return request.getAuthenticationMap() instanceof AuthenticationRequestImpl.SessionMap;
+    }
+}
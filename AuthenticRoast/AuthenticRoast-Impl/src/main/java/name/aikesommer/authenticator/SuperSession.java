@@ -23,11 +23,14 @@
  */
 package name.aikesommer.authenticator;
 
-import java.lang.ref.WeakReference;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -46,15 +49,64 @@ public class SuperSession {
 
     private static final String IN_REQUEST_NOTE = SuperSession.class.getName() + ".IN_REQUEST";
 
-    private static final Map<String, WeakReference<SuperSession>> sessions =
-            new HashMap<String, WeakReference<SuperSession>>();
+    /**
+     * System property holding the time in seconds after which unused
+     * SuperSessions are dropped, 0 (the default) for no timeout.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "roast.super-session.idle-timeout";
 
-    private static final Map<SuperSession, String> sessionKeys =
-            new WeakHashMap<SuperSession, String>();
+    /**
+     * System property holding the maximum number of SuperSessions kept, 0
+     * (the default) for no limit.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = "roast.super-session.max-entries";
 
-    private static final Random random = new Random();
+    private static final SuperSessionRegistry sessions = new SuperSessionRegistry(
+            Long.getLong(IDLE_TIMEOUT_PROPERTY, 0) * 1000, Integer.getInteger(MAX_ENTRIES_PROPERTY, 0));
 
-    private static int accessCounter = 0;
+    /**
+     * The number of running applications using SuperSessions, guarded by
+     * the registry.
+     */
+    private static int attached;
+
+    /**
+     * Get the registry of all SuperSessions in this JVM, eg to add eviction
+     * listeners or to monitor it.
+     */
+    public static SuperSessionRegistry getRegistry() {
+        return sessions;
+    }
+
+    /**
+     * Called when an application using SuperSessions is started. The first
+     * one creates the replicator configured by system properties.
+     */
+    public static void attach() {
+        synchronized (sessions) {
+            if (attached++ == 0) {
+                sessions.setReplicator(SuperSessionReplicator.fromSystemProperties());
+            }
+        }
+    }
+
+    /**
+     * Called when an application using SuperSessions is stopped. The last
+     * one writes pending changes and stops the replicator, so no threads
+     * are left behind.
+     */
+    public static void detach() {
+        SuperSessionReplicator replicator = null;
+        synchronized (sessions) {
+            if (attached > 0 && --attached == 0) {
+                replicator = sessions.getReplicator();
+                sessions.setReplicator(null);
+            }
+        }
+        if (replicator != null) {
+            replicator.close();
+        }
+    }
 
     public static SuperSession self(HttpServletRequest request, HttpServletResponse response,
             boolean create) {
@@ -69,29 +121,20 @@ public class SuperSession {
         Cookie[] cookies = request.getCookies();
         if (cookies != null) {
             for (Cookie cookie : cookies) {
-                if (cookie.getName().equals(COOKIE_NAME)) {
+                if (cookie.getName().equals(COOKIE_NAME) && isValidKey(cookie.getValue())) {
                     key = cookie.getValue();
                 }
             }
         }
         if (key == null) {
-            key = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
-            key = key.toUpperCase();
+            key = TokenGenerator.getInstance().nextToken();
 
             Cookie cookie = new Cookie(COOKIE_NAME, key);
             cookie.setMaxAge(-1);
             cookie.setPath("/");
             response.addCookie(cookie);
         }
-        WeakReference<SuperSession> ref = sessions.get(key);
-        SuperSession result = ref == null ? null : ref.get();
-        if (result == null && create) {
-            result = new SuperSession();
-            ref = new WeakReference<SuperSession>(result);
-
-            sessions.put(key, ref);
-            sessionKeys.put(result, key);
-        }
+        SuperSession result = sessions.get(key, create);
         HttpSession session = request.getSession(create);
         if (session != null) {
             if (result != null) {
@@ -103,18 +146,296 @@ public class SuperSession {
             }
         }
 
-        accessCounter++;
-        if (accessCounter > 100) {
-            sessions.keySet().retainAll(sessionKeys.values());
+        return result;
+    }
+
+    /**
+     * Check whether key looks like one created by the {@link TokenGenerator},
+     * as keys come back in a cookie and are used in file-names and the like.
+     */
+    static boolean isValidKey(String key) {
+        if (key == null || key.length() != TokenGenerator.TOKEN_LENGTH) {
+            return false;
         }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9')
+                    && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return result;
+    private final String key;
+
+    /**
+     * The version of the state, only used with a backend.
+     */
+    volatile long version;
+
+    /**
+     * When the state has last been compared to the backend.
+     */
+    volatile long refreshedAt;
+
+    private final AttributeMap attributes = new AttributeMap();
+
+    public SuperSession() {
+        this(null);
     }
 
-    private Map<String, Object> attributes = new HashMap();
+    SuperSession(String key) {
+        this.key = key;
+    }
 
-    public Map<String, Object> attributes() {
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Remove this SuperSession everywhere, including the backend, so all
+     * applications and nodes sharing it have to start a new one.
+     */
+    public void invalidate() {
+        attributes.clear();
+        sessions.invalidate(key);
+    }
+
+    /**
+     * The attributes shared by all contexts. Reads see a consistent state
+     * without locking, changes can be coordinated using the atomic
+     * operations of ConcurrentMap.
+     */
+    public ConcurrentMap<String, Object> attributes() {
         return attributes;
     }
 
+    /**
+     * Take a snapshot of the serializable attributes with a new version.
+     */
+    SuperSessionBackend.Snapshot snapshot() {
+        Map<String, Object> copy = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : attributes.values.get().entrySet()) {
+            if (entry.getValue() instanceof Serializable) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        synchronized (this) {
+            version = Math.max(version + 1, System.currentTimeMillis() * 1000);
+            return new SuperSessionBackend.Snapshot(version, copy);
+        }
+    }
+
+    /**
+     * Get the current state of the attributes, to be passed to
+     * {@link #apply(SuperSessionBackend.Snapshot, Map, long)} later.
+     */
+    Map<String, Object> state() {
+        return attributes.values.get();
+    }
+
+    /**
+     * Replace the attributes with those of snapshot, unless they have been
+     * changed locally since expected was taken, as such a change is newer
+     * and will be replicated itself.
+     *
+     * @param expected The state when loading the snapshot was started.
+     * @return true if the snapshot has been applied.
+     */
+    boolean apply(SuperSessionBackend.Snapshot snapshot, Map<String, Object> expected, long now) {
+        Map<String, Object> next = new HashMap<String, Object>(snapshot.getAttributes());
+        synchronized (this) {
+            if (!attributes.values.compareAndSet(expected, next)) {
+                return false;
+            }
+            version = snapshot.getVersion();
+            refreshedAt = now;
+            return true;
+        }
+    }
+
+    /**
+     * The attributes, kept in an immutable map that is copied and swapped
+     * on every change. Attributes are read far more often than they are
+     * written, so this keeps reads free of locks and iteration consistent.
+     * Every change is reported to the registry so it can be replicated.
+     */
+    private class AttributeMap extends AbstractMap<String, Object> implements ConcurrentMap<String, Object> {
+
+        final AtomicReference<Map<String, Object>> values = new AtomicReference<Map<String, Object>>(
+                Collections.<String, Object>emptyMap());
+
+        /**
+         * Replace current by next, reporting the change on success.
+         */
+        private boolean swap(Map<String, Object> current, Map<String, Object> next) {
+            if (values.compareAndSet(current, next)) {
+                sessions.changed(SuperSession.this);
+                return true;
+            }
+            return false;
+        }
+
+        private Map<String, Object> copy(Map<String, Object> current) {
+            return new HashMap<String, Object>(current);
+        }
+
+        @Override
+        public Object get(Object name) {
+            return values.get().get(name);
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return values.get().containsKey(name);
+        }
+
+        @Override
+        public int size() {
+            return values.get().size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return values.get().isEmpty();
+        }
+
+        @Override
+        public Object put(String name, Object value) {
+            if (name == null || value == null) {
+                throw new NullPointerException();
+            }
+            while (true) {
+                Map<String, Object> current = values.get();
+                Map<String, Object> next = copy(current);
+                Object old = next.put(name, value);
+                if (swap(current, next)) {
+                    return old;
+                }
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends Object> map) {
+            while (true) {
+                Map<String, Object> current = values.get();
+                Map<String, Object> next = copy(current);
+                for (Map.Entry<? extends String, ? extends Object> entry : map.entrySet()) {
+                    if (entry.getKey() == null || entry.getValue() == null) {
+                        throw new NullPointerException();
+                    }
+                    next.put(entry.getKey(), entry.getValue());
+                }
+                if (swap(current, next)) {
+                    return;
+                }
+            }
+        }
+
+        public Object putIfAbsent(String name, Object value) {
+            if (name == null || value == null) {
+                throw new NullPointerException();
+            }
+            while (true) {
+                Map<String, Object> current = values.get();
+                Object old = current.get(name);
+                if (old != null) {
+                    return old;
+                }
+                Map<String, Object> next = copy(current);
+                next.put(name, value);
+                if (swap(current, next)) {
+                    return null;
+                }
+            }
+        }
+
+        public Object replace(String name, Object value) {
+            if (value == null) {
+                throw new NullPointerException();
+            }
+            while (true) {
+                Map<String, Object> current = values.get();
+                Object old = current.get(name);
+                if (old == null) {
+                    return null;
+                }
+                Map<String, Object> next = copy(current);
+                next.put(name, value);
+                if (swap(current, next)) {
+                    return old;
+                }
+            }
+        }
+
+        public boolean replace(String name, Object expected, Object value) {
+            if (expected == null || value == null) {
+                throw new NullPointerException();
+            }
+            while (true) {
+                Map<String, Object> current = values.get();
+                if (!expected.equals(current.get(name))) {
+                    return false;
+                }
+                Map<String, Object> next = copy(current);
+                next.put(name, value);
+                if (swap(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public Object remove(Object name) {
+            while (true) {
+                Map<String, Object> current = values.get();
+                if (!current.containsKey(name)) {
+                    return null;
+                }
+                Map<String, Object> next = copy(current);
+                Object old = next.remove(name);
+                if (swap(current, next)) {
+                    return old;
+                }
+            }
+        }
+
+        public boolean remove(Object name, Object expected) {
+            if (expected == null) {
+                return false;
+            }
+            while (true) {
+                Map<String, Object> current = values.get();
+                if (!expected.equals(current.get(name))) {
+                    return false;
+                }
+                Map<String, Object> next = copy(current);
+                next.remove(name);
+                if (swap(current, next)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void clear() {
+            while (true) {
+                Map<String, Object> current = values.get();
+                if (current.isEmpty() || swap(current, Collections.<String, Object>emptyMap())) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Iterates over the state at the time of the call, changes have to
+         * go through the map itself.
+         */
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return Collections.unmodifiableMap(values.get()).entrySet();
+        }
+    }
+
 }
@@ -0,0 +1,101 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A store shared by several nodes, so a SuperSession created on one node is
+ * available on the others. The SuperSessions of a node are a near-cache in
+ * front of the backend: they are only loaded when missing or stale and
+ * changes are written asynchronously and in batches by the
+ * {@link SuperSessionReplicator}.
+ * The backend is selected with the system property
+ * <code>roast.super-session.backend</code>, holding the name of a class
+ * implementing this interface with a public no-arg constructor. It is
+ * used while at least one application registered by
+ * {@link AuthModuleListener} is running.
+ *
+ * @author Ratcash
+ */
+public interface SuperSessionBackend {
+
+    /**
+     * Load the state of a SuperSession. The context class-loader is the one
+     * of the application asking for it, to resolve the classes of its
+     * attributes with.
+     *
+     * @return The state or null if the backend does not know key.
+     */
+    Snapshot load(String key) throws IOException;
+
+    /**
+     * Store the state of several SuperSessions at once. A snapshot
+     * only replaces the stored one if its version is higher.
+     *
+     * @param batch The snapshots by key.
+     */
+    void store(Map<String, Snapshot> batch) throws IOException;
+
+    /**
+     * Remove several SuperSessions at once, because they have been
+     * invalidated.
+     * Keys the backend does not know are ignored.
+     */
+    void remove(Collection<String> keys) throws IOException;
+
+    /**
+     * Release all resources held by this backend.
+     */
+    void close();
+
+    /**
+     * The state of a SuperSession at one point in time.
+     */
+    public static final class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long version;
+        private final Map<String, Object> attributes;
+
+        public Snapshot(long version, Map<String, Object> attributes) {
+            this.version = version;
+            this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+    }
+}
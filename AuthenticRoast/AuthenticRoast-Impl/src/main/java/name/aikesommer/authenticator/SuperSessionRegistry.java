@@ -0,0 +1,431 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The SuperSessions of this JVM by their key. A SuperSession is kept as long
+ * as one of the HttpSessions it belongs to references it, so entries are
+ * weak and removed once their SuperSession has been collected. This is
+ * done incrementally by draining a ReferenceQueue, so it only costs time
+ * for entries that have actually been collected.
+ * Additionally entries can be limited by an idle timeout and a maximum
+ * number, so the memory used does not depend on the garbage collector.
+ * Idle entries are found with a timing wheel that is advanced by the
+ * requests themselves. If there are too many entries, those not accessed
+ * for the longest time are evicted first, approximated by giving every
+ * entry a second chance.
+ * If a {@link SuperSessionReplicator} is set, SuperSessions missing here
+ * are loaded from its backend, so the registry acts as a near-cache.
+ * Evicting an entry only drops the local copy, as the SuperSession may
+ * still be used on other nodes; only invalidating it removes it from the
+ * backend.
+ * Lookups are lock-free, all methods can be called concurrently.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class SuperSessionRegistry {
+
+    private static final Logger log = Logger.getLogger(SuperSessionRegistry.class.getName());
+
+    /**
+     * The maximum number of collected entries removed per call, to bound
+     * the time spent on a single request.
+     */
+    private static final int MAX_DRAIN = 64;
+
+    private static final int WHEEL_SIZE = 64;
+
+    /**
+     * Why an entry has been removed.
+     */
+    public static enum Cause {
+        /** The entry has not been accessed for the idle timeout. */
+        Expired,
+        /** There were too many entries. */
+        Size,
+        /** The SuperSession has been collected. */
+        Collected,
+        /** The SuperSession has been invalidated. */
+        Invalidated
+    }
+
+    /**
+     * Notified whenever an entry is removed.
+     */
+    public static interface Listener {
+
+        /**
+         * @param session The evicted SuperSession, null if it has been
+         *          collected.
+         */
+        void evicted(String key, SuperSession session, Cause cause);
+
+    }
+
+    private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<String, Entry>();
+
+    private final ReferenceQueue<SuperSession> queue = new ReferenceQueue<SuperSession>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final long idleTimeout;
+
+    private final int maxEntries;
+
+    private final long tick;
+
+    private final List<ConcurrentLinkedQueue<Entry>> wheel;
+
+    /**
+     * The index of the next slot of the wheel and the time it is due, both
+     * guarded by wheelLock.
+     */
+    private int cursor;
+
+    private volatile long nextTick;
+
+    private final ReentrantLock wheelLock = new ReentrantLock();
+
+    /**
+     * All entries in the order they have been created or given a second
+     * chance, only used if maxEntries is set.
+     */
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+
+    private final AtomicInteger orderLength = new AtomicInteger();
+
+    private volatile SuperSessionReplicator replicator;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong[] evictions = new AtomicLong[Cause.values().length];
+
+    /**
+     * Create a registry only limited by the garbage collector.
+     */
+    public SuperSessionRegistry() {
+        this(0, 0);
+    }
+
+    /**
+     * Create a registry.
+     *
+     * @param idleTimeout The time in milliseconds after which unused entries
+     *          are evicted, 0 for no timeout.
+     * @param maxEntries The maximum number of entries, 0 for no limit.
+     */
+    public SuperSessionRegistry(long idleTimeout, int maxEntries) {
+        this.idleTimeout = idleTimeout;
+        this.maxEntries = maxEntries;
+        // a deadline is at most half a turn ahead, so no rounds are needed
+        this.tick = Math.max(1, idleTimeout / (WHEEL_SIZE / 2));
+        this.wheel = new ArrayList<ConcurrentLinkedQueue<Entry>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ConcurrentLinkedQueue<Entry>());
+        }
+        this.nextTick = (System.currentTimeMillis() / tick + 1) * tick;
+        for (int i = 0; i < evictions.length; i++) {
+            evictions[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Set the replicator connecting this registry to a backend.
+     */
+    public void setReplicator(SuperSessionReplicator replicator) {
+        this.replicator = replicator;
+    }
+
+    public SuperSessionReplicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Called whenever the attributes of session have changed.
+     */
+    void changed(SuperSession session) {
+        SuperSessionReplicator current = replicator;
+        if (current != null) {
+            current.changed(session);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the SuperSession for key.
+     *
+     * @param create Whether to create a SuperSession if there is none.
+     * @return The SuperSession or null if there is none and create is false.
+     */
+    public SuperSession get(String key, boolean create) {
+        long now = System.currentTimeMillis();
+        maintain(now);
+        Entry entry = sessions.get(key);
+        SuperSession result = entry == null ? null : entry.get();
+        SuperSessionReplicator current = replicator;
+        if (result != null) {
+            hits.incrementAndGet();
+            entry.touch(now);
+            if (current != null) {
+                current.refresh(result, now);
+            }
+            return result;
+        }
+        misses.incrementAndGet();
+        SuperSession loaded = current == null ? null : current.load(key, now, create);
+        while (result == null && (create || loaded != null)) {
+            SuperSession created = loaded != null ? loaded : new SuperSession(key);
+            Entry fresh = new Entry(key, created, queue, now);
+            if (entry == null ? sessions.putIfAbsent(key, fresh) == null : sessions.replace(key, entry, fresh)) {
+                if (entry != null) {
+                    entry.removed = true;
+                }
+                added(fresh);
+                return created;
+            }
+            // somebody else was faster, use theirs if it is still alive
+            entry = sessions.get(key);
+            result = entry == null ? null : entry.get();
+        }
+        if (result != null) {
+            entry.touch(now);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of entries, including those whose SuperSession has been
+     * collected but not yet removed.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the ratio of lookups that found a SuperSession.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getEvictions(Cause cause) {
+        return evictions[cause.ordinal()].get();
+    }
+
+    private void added(Entry entry) {
+        if (idleTimeout > 0) {
+            schedule(entry, entry.lastAccess + idleTimeout);
+        }
+        if (maxEntries > 0) {
+            order.offer(entry);
+            orderLength.incrementAndGet();
+            while (sessions.size() > maxEntries && evictOne()) {
+            }
+            if (orderLength.get() > 2 * maxEntries) {
+                trim();
+            }
+        }
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        // round up, so an entry is never evicted before its deadline
+        long slot = (deadline + tick - 1) / tick;
+        wheel.get((int) (slot % WHEEL_SIZE)).offer(entry);
+    }
+
+    /**
+     * Remove collected entries and advance the wheel if it is due. Only one
+     * thread advances the wheel, the others just carry on.
+     */
+    private void maintain(long now) {
+        Reference<? extends SuperSession> ref;
+        for (int i = 0; i < MAX_DRAIN && (ref = queue.poll()) != null; i++) {
+            Entry entry = (Entry) ref;
+            remove(entry, null, Cause.Collected);
+        }
+        if (idleTimeout > 0 && now >= nextTick && wheelLock.tryLock()) {
+            try {
+                long due = nextTick;
+                if (now - due >= WHEEL_SIZE * tick) {
+                    // after a long pause every slot only has to be looked at once
+                    due = (now / tick - (WHEEL_SIZE - 1)) * tick;
+                }
+                while (due <= now) {
+                    ConcurrentLinkedQueue<Entry> slot = wheel.get((int) ((due / tick) % WHEEL_SIZE));
+                    int count = slot.size();
+                    Entry entry;
+                    for (int i = 0; i < count && (entry = slot.poll()) != null; i++) {
+                        if (entry.removed) {
+                            continue;
+                        }
+                        long deadline = entry.lastAccess + idleTimeout;
+                        if (deadline <= now) {
+                            remove(entry, entry.get(), Cause.Expired);
+                        } else {
+                            schedule(entry, deadline);
+                        }
+                    }
+                    due += tick;
+                }
+                nextTick = due;
+            } finally {
+                wheelLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evict the oldest entry not accessed since it has last been looked at.
+     *
+     * @return Whether there may be more entries to evict.
+     */
+    private boolean evictOne() {
+        for (int i = orderLength.get(); i >= 0; i--) {
+            Entry entry = order.poll();
+            if (entry == null) {
+                return false;
+            }
+            if (entry.removed) {
+                orderLength.decrementAndGet();
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                order.offer(entry);
+                continue;
+            }
+            orderLength.decrementAndGet();
+            remove(entry, entry.get(), Cause.Size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drop removed entries from the order, keeping the live ones where they
+     * are relative to each other.
+     */
+    private void trim() {
+        for (int i = orderLength.get(); i > 0; i--) {
+            Entry entry = order.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.removed) {
+                orderLength.decrementAndGet();
+            } else {
+                order.offer(entry);
+            }
+        }
+    }
+
+    /**
+     * Remove the SuperSession with key here and from the backend, so no
+     * node finds it anymore.
+     */
+    public void invalidate(String key) {
+        Entry entry = sessions.get(key);
+        if (entry != null) {
+            remove(entry, entry.get(), Cause.Invalidated);
+        }
+        SuperSessionReplicator current = replicator;
+        if (current != null) {
+            current.removed(key);
+        }
+    }
+
+    private void remove(Entry entry, SuperSession session, Cause cause) {
+        if (!sessions.remove(entry.key, entry)) {
+            entry.removed = true;
+            return;
+        }
+        entry.removed = true;
+        evictions[cause.ordinal()].incrementAndGet();
+        for (Listener listener : listeners) {
+            try {
+                listener.evicted(entry.key, session, cause);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "eviction listener failed", ex);
+            }
+        }
+    }
+
+    private static final class Entry extends WeakReference<SuperSession> {
+
+        final String key;
+        volatile long lastAccess;
+        volatile boolean referenced;
+        volatile boolean removed;
+
+        Entry(String key, SuperSession session, ReferenceQueue<SuperSession> queue, long now) {
+            super(session, queue);
+            this.key = key;
+            this.lastAccess = now;
+        }
+
+        void touch(long now) {
+            // avoid writing shared memory more than once per millisecond
+            if (lastAccess != now) {
+                lastAccess = now;
+            }
+            if (!referenced) {
+                referenced = true;
+            }
+        }
+    }
+}
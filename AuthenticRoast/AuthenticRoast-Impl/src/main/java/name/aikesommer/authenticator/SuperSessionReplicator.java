@@ -0,0 +1,397 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects the SuperSessions of this node to a {@link SuperSessionBackend}.
+ * SuperSessions missing locally are loaded from the backend, waiting at most
+ * for the load-timeout, and those loaded are checked for newer versions in
+ * the background at most once per refresh-interval.
+ * Changes and removals are collected and written by a background thread in
+ * batches, so requests never wait for writes.
+ * The threads are stopped by {@link #close()}, which happens when the last
+ * application using SuperSessions is stopped.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class SuperSessionReplicator {
+
+    /**
+     * System property holding the class name of the backend.
+     */
+    public static final String BACKEND_PROPERTY = "roast.super-session.backend";
+
+    /**
+     * System property holding the time in milliseconds between two writes.
+     */
+    public static final String FLUSH_INTERVAL_PROPERTY = "roast.super-session.flush-interval";
+
+    /**
+     * System property holding the time in milliseconds a SuperSession is used
+     * without checking the backend for a newer version.
+     */
+    public static final String REFRESH_INTERVAL_PROPERTY = "roast.super-session.refresh-interval";
+
+    /**
+     * System property holding the maximum number of SuperSessions written at
+     * once.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "roast.super-session.batch-size";
+
+    /**
+     * System property holding the time in milliseconds a request waits for a
+     * SuperSession to be loaded.
+     */
+    public static final String LOAD_TIMEOUT_PROPERTY = "roast.super-session.load-timeout";
+
+    private static final Logger log = Logger.getLogger(SuperSessionReplicator.class.getName());
+
+    private static final int LOADER_THREADS = 4;
+
+    private final SuperSessionBackend backend;
+
+    private final long refreshInterval;
+
+    private final int batchSize;
+
+    private final long loadTimeout;
+
+    private final ConcurrentHashMap<String, SuperSession> dirty = new ConcurrentHashMap<String, SuperSession>();
+
+    private final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService flusher;
+
+    private final ThreadPoolExecutor loader;
+
+    public SuperSessionReplicator(SuperSessionBackend backend, long flushInterval, long refreshInterval,
+            int batchSize, long loadTimeout) {
+        this.backend = backend;
+        this.refreshInterval = refreshInterval;
+        this.batchSize = batchSize;
+        this.loadTimeout = loadTimeout;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(threadFactory("roast-super-session"));
+        this.loader = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1024), threadFactory("roast-super-session-loader"));
+        this.loader.allowCoreThreadTimeOut(true);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                // do not keep the application that happens to start the thread
+                thread.setContextClassLoader(SuperSessionReplicator.class.getClassLoader());
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Create the replicator configured by system properties.
+     *
+     * @return The replicator or null if no backend is configured.
+     */
+    public static SuperSessionReplicator fromSystemProperties() {
+        String backendClass = System.getProperty(BACKEND_PROPERTY);
+        if (backendClass == null) {
+            return null;
+        }
+        SuperSessionBackend backend;
+        try {
+            backend = Class.forName(backendClass).asSubclass(SuperSessionBackend.class)
+                    .getDeclaredConstructor().newInstance();
+        } catch (Exception ex) {
+            throw new IllegalArgumentException("unable to create SuperSessionBackend " + backendClass, ex);
+        }
+        return new SuperSessionReplicator(backend, Long.getLong(FLUSH_INTERVAL_PROPERTY, 200),
+                Long.getLong(REFRESH_INTERVAL_PROPERTY, 1000), Integer.getInteger(BATCH_SIZE_PROPERTY, 256),
+                Long.getLong(LOAD_TIMEOUT_PROPERTY, 200));
+    }
+
+    /**
+     * Load in the background with the class-loader of the application
+     * asking, so the backend can read back the classes of its attributes.
+     */
+    private CompletableFuture<SuperSessionBackend.Snapshot> loadAsync(final String key) {
+        final ClassLoader application = Thread.currentThread().getContextClassLoader();
+        return CompletableFuture.supplyAsync(new Supplier<SuperSessionBackend.Snapshot>() {
+
+            public SuperSessionBackend.Snapshot get() {
+                Thread thread = Thread.currentThread();
+                ClassLoader previous = thread.getContextClassLoader();
+                thread.setContextClassLoader(application);
+                try {
+                    return backend.load(key);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                } finally {
+                    thread.setContextClassLoader(previous);
+                }
+            }
+        }, loader);
+    }
+
+    /**
+     * Load a SuperSession from the backend.
+     * If the backend does not answer within the load-timeout and create is
+     * set, an empty SuperSession is returned, which gets the state from the
+     * backend once it arrives.
+     *
+     * @return The SuperSession or null if the backend does not know it or
+     *         does not answer in time.
+     */
+    public SuperSession load(String key, long now, boolean create) {
+        final SuperSession session = new SuperSession(key);
+        final Map<String, Object> expected = session.state();
+        CompletableFuture<SuperSessionBackend.Snapshot> pending;
+        try {
+            pending = loadAsync(key);
+        } catch (RejectedExecutionException ex) {
+            log.warning("too many SuperSessions being loaded, skipping " + key);
+            return null;
+        }
+        try {
+            SuperSessionBackend.Snapshot snapshot = pending.get(loadTimeout, TimeUnit.MILLISECONDS);
+            if (snapshot == null) {
+                return null;
+            }
+            session.apply(snapshot, expected, now);
+            return session;
+        } catch (TimeoutException ex) {
+            if (!create) {
+                return null;
+            }
+            log.fine("loading a SuperSession takes too long, carrying on without its state");
+            pending.whenComplete(new BiConsumer<SuperSessionBackend.Snapshot, Throwable>() {
+
+                public void accept(SuperSessionBackend.Snapshot snapshot, Throwable error) {
+                    update(session, expected, snapshot, error);
+                }
+            });
+            return session;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            log.log(Level.WARNING, "unable to load SuperSession", ex.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Update session from the backend in the background if it has not been
+     * checked for the refresh-interval.
+     */
+    public void refresh(final SuperSession session, long now) {
+        if (now - session.refreshedAt < refreshInterval || dirty.containsKey(session.getKey())) {
+            return;
+        }
+        session.refreshedAt = now;
+        final Map<String, Object> expected = session.state();
+        try {
+            loadAsync(session.getKey()).whenComplete(new BiConsumer<SuperSessionBackend.Snapshot, Throwable>() {
+
+                public void accept(SuperSessionBackend.Snapshot snapshot, Throwable error) {
+                    update(session, expected, snapshot, error);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // try again with the next request
+            session.refreshedAt = 0;
+        }
+    }
+
+    /**
+     * Apply a snapshot loaded in the background, unless the session has
+     * been changed since the load was started.
+     */
+    private void update(SuperSession session, Map<String, Object> expected,
+            SuperSessionBackend.Snapshot snapshot, Throwable error) {
+        if (error != null) {
+            log.log(Level.WARNING, "unable to refresh SuperSession", error);
+            return;
+        }
+        if (snapshot != null && snapshot.getVersion() > session.version && !dirty.containsKey(session.getKey())) {
+            session.apply(snapshot, expected, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Schedule session to be written.
+     */
+    public void changed(SuperSession session) {
+        if (session.getKey() != null) {
+            removed.remove(session.getKey());
+            dirty.put(session.getKey(), session);
+        }
+    }
+
+    /**
+     * Schedule the SuperSession with key to be removed from the backend,
+     * because it has been invalidated.
+     */
+    public void removed(String key) {
+        dirty.remove(key);
+        removed.add(key);
+    }
+
+    /**
+     * Write all changes and removals. Whatever cannot be written is kept
+     * for the next time.
+     */
+    public void flush() {
+        while (!removed.isEmpty()) {
+            List<String> batch = new ArrayList<String>();
+            for (Iterator<String> it = removed.iterator(); it.hasNext() && batch.size() < batchSize;) {
+                String key = it.next();
+                if (removed.remove(key)) {
+                    batch.add(key);
+                }
+            }
+            try {
+                backend.remove(batch);
+            } catch (IOException ex) {
+                removeEach(batch, ex);
+                return;
+            } catch (RuntimeException ex) {
+                removeEach(batch, ex);
+                return;
+            }
+        }
+        while (!dirty.isEmpty()) {
+            Map<String, SuperSessionBackend.Snapshot> batch = new HashMap<String, SuperSessionBackend.Snapshot>();
+            Map<String, SuperSession> pending = new HashMap<String, SuperSession>();
+            for (Iterator<Map.Entry<String, SuperSession>> it = dirty.entrySet().iterator();
+                    it.hasNext() && batch.size() < batchSize;) {
+                Map.Entry<String, SuperSession> entry = it.next();
+                if (dirty.remove(entry.getKey(), entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue().snapshot());
+                    pending.put(entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                backend.store(batch);
+            } catch (IOException ex) {
+                storeEach(batch, pending, ex);
+                return;
+            } catch (RuntimeException ex) {
+                storeEach(batch, pending, ex);
+                return;
+            }
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("wrote " + batch.size() + " SuperSessions");
+            }
+        }
+    }
+
+    /**
+     * Retry a failed batch of removals one by one, so one bad entry does
+     * not hold up the others. Entries failing with an IOException are kept
+     * for the next time, those the backend rejects otherwise are dropped.
+     */
+    private void removeEach(List<String> batch, Exception cause) {
+        log.log(Level.WARNING, "unable to remove " + batch.size() + " SuperSessions, trying one by one", cause);
+        for (String key : batch) {
+            try {
+                backend.remove(Collections.singletonList(key));
+            } catch (IOException ex) {
+                if (!dirty.containsKey(key)) {
+                    removed.add(key);
+                }
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "dropping removal of SuperSession " + key, ex);
+            }
+        }
+    }
+
+    /**
+     * Retry a failed batch of writes one by one, like
+     * {@link #removeEach(List, Exception)}.
+     */
+    private void storeEach(Map<String, SuperSessionBackend.Snapshot> batch, Map<String, SuperSession> pending,
+            Exception cause) {
+        log.log(Level.WARNING, "unable to write " + batch.size() + " SuperSessions, trying one by one", cause);
+        for (Map.Entry<String, SuperSessionBackend.Snapshot> entry : batch.entrySet()) {
+            try {
+                backend.store(Collections.singletonMap(entry.getKey(), entry.getValue()));
+            } catch (IOException ex) {
+                if (!removed.contains(entry.getKey())) {
+                    dirty.putIfAbsent(entry.getKey(), pending.get(entry.getKey()));
+                }
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "dropping write of SuperSession " + entry.getKey(), ex);
+            }
+        }
+    }
+
+    /**
+     * Write pending changes and stop the threads.
+     */
+    public void close() {
+        flusher.shutdown();
+        loader.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        backend.close();
+    }
+}
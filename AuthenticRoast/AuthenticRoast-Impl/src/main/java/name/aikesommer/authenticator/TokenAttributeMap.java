@@ -0,0 +1,222 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The authentication map used in stateless mode. Its contents are kept in a
+ * signed cookie instead of the session. Changes are collected and written
+ * once, when {@link #flush()} is called before the response is committed.
+ * Values have to be serializable and the whole map has to fit into the
+ * size limit of the {@link TokenCodec}.
+ * The payload carries an absolute expiry, so a captured cookie cannot be
+ * used beyond it whatever the client does with the cookie's max-age. While
+ * the map holds a principal, eg one handed from the login to the next
+ * request, the expiry is cut down to {@link #PRINCIPAL_TTL} seconds.
+ *
+ * @author Ratcash
+ */
+public class TokenAttributeMap extends AuthenticationRequestImpl.NoteMap {
+
+    private static final String COOKIE_NAME = "ROAST_STATE";
+
+    private static final String PURPOSE = "attributes";
+
+    private static final byte VERSION = 1;
+
+    /**
+     * The lifetime in seconds of a map holding a principal.
+     */
+    public static final int PRINCIPAL_TTL = 60;
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    private final TokenCodec codec;
+
+    private final int ttl;
+
+    private Map<String, Object> state;
+
+    private boolean dirty = false;
+
+    public TokenAttributeMap(HttpServletRequest request, HttpServletResponse response,
+            TokenCodec codec, int ttl) {
+        this.request = request;
+        this.response = response;
+        this.codec = codec;
+        this.ttl = ttl;
+    }
+
+    private Map<String, Object> state() {
+        if (state == null) {
+            Cookie cookie = TokenCookies.find(request, COOKIE_NAME);
+            state = cookie == null ? null : read(codec.decode(PURPOSE, cookie.getValue()));
+            if (state == null) {
+                state = new HashMap<String, Object>();
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public Iterator<String> getNoteNames() {
+        final Iterator<String> it = state().keySet().iterator();
+        return new Iterator<String>() {
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public String next() {
+                return it.next();
+            }
+
+            public void remove() {
+                it.remove();
+                dirty = true;
+            }
+        };
+    }
+
+    @Override
+    public Object getNote(String s) {
+        return state().get(s);
+    }
+
+    @Override
+    public void setNote(String s, Object o) {
+        state().put(s, o);
+        dirty = true;
+    }
+
+    @Override
+    public void removeNote(String s) {
+        if (state().remove(s) != null) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    public int size() {
+        return state().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return state().isEmpty();
+    }
+
+    /**
+     * Write the cookie if anything has changed.
+     */
+    public void flush() {
+        if (!dirty || response.isCommitted()) {
+            return;
+        }
+        dirty = false;
+        if (state.isEmpty()) {
+            response.addCookie(TokenCookies.create(request, COOKIE_NAME, "", 0));
+        } else {
+            int lifetime = holdsPrincipal(state) ? Math.min(ttl, PRINCIPAL_TTL) : ttl;
+            String token = codec.encode(PURPOSE, write(state, System.currentTimeMillis() + lifetime * 1000L));
+            response.addCookie(TokenCookies.create(request, COOKIE_NAME, token, lifetime));
+        }
+    }
+
+    private static boolean holdsPrincipal(Map<String, Object> values) {
+        for (Object value : values.values()) {
+            if (value instanceof Principal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] write(Map<String, Object> values, long expires) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeByte(VERSION);
+            header.writeLong(expires);
+            header.flush();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(new HashMap<String, Object>(values));
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("values in stateless mode have to be serializable", ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> read(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(payload);
+            DataInputStream header = new DataInputStream(bytes);
+            long now = System.currentTimeMillis();
+            if (header.readByte() != VERSION) {
+                return null;
+            }
+            long expires = header.readLong();
+            if (expires < now) {
+                return null;
+            }
+            ObjectInputStream in = new RestrictedObjectInputStream(bytes);
+            Map<String, Object> values = (Map<String, Object>) in.readObject();
+            if (holdsPrincipal(values) && expires > now + PRINCIPAL_TTL * 1000L) {
+                /** a principal is never accepted for longer than the bound */
+                return null;
+            }
+            try {
+                /** anything after the map makes the payload invalid */
+                in.readObject();
+                return null;
+            } catch (EOFException ex) {
+                return values;
+            }
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Turns small payloads into compact, url-safe tokens protected by an
+ * HMAC-SHA256 and, optionally, encrypted with AES-GCM. Tokens have the form
+ * <code>keyId.payload.mac</code>.
+ * Every token is bound to a purpose, so a token issued for one purpose,
+ * like a saved request, is never accepted for another, like a principal.
+ * Several keys can be configured for key rotation: the first one is used
+ * for new tokens, all of them are accepted when decoding.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class TokenCodec {
+
+    /**
+     * Option holding the keys as a comma-separated list of
+     * <code>id:base64-secret</code> entries, the first one being active.
+     */
+    public static final String KEYS_OPTION = "roast.token.keys";
+
+    /**
+     * Option to enable encryption of the payload.
+     */
+    public static final String ENCRYPT_OPTION = "roast.token.encrypt";
+
+    /**
+     * Option holding the maximum length of a token in characters.
+     */
+    public static final String MAX_LENGTH_OPTION = "roast.token.max-length";
+
+    private static final int DEFAULT_MAX_LENGTH = 4000;
+
+    private static final int IV_LENGTH = 12;
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final Map<String, Key> keys = new LinkedHashMap<String, Key>();
+
+    private final Key active;
+
+    private final boolean encrypt;
+
+    private final int maxLength;
+
+    /**
+     * Create a codec.
+     *
+     * @param secrets The secrets by key-id, the first one is used for new
+     *                tokens.
+     * @param encrypt Whether to encrypt the payload.
+     * @param maxLength The maximum length of a token in characters.
+     */
+    public TokenCodec(Map<String, byte[]> secrets, boolean encrypt, int maxLength) {
+        if (secrets.isEmpty()) {
+            throw new IllegalArgumentException("at least one key is needed");
+        }
+        for (Map.Entry<String, byte[]> entry : secrets.entrySet()) {
+            if (entry.getKey().indexOf('.') >= 0) {
+                throw new IllegalArgumentException("key-id must not contain '.': " + entry.getKey());
+            }
+            keys.put(entry.getKey(), new Key(entry.getKey(), entry.getValue()));
+        }
+        this.active = keys.values().iterator().next();
+        this.encrypt = encrypt;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Create a codec from module options.
+     *
+     * @return The codec or null if no keys are configured.
+     */
+    public static TokenCodec fromOptions(Map<?, ?> options) {
+        Object keyList = options == null ? null : options.get(KEYS_OPTION);
+        if (keyList == null) {
+            return null;
+        }
+        Map<String, byte[]> secrets = new LinkedHashMap<String, byte[]>();
+        for (String entry : keyList.toString().split(",")) {
+            int separator = entry.indexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("keys have to be given as id:base64-secret");
+            }
+            secrets.put(entry.substring(0, separator).trim(),
+                    Base64.getDecoder().decode(entry.substring(separator + 1).trim()));
+        }
+        Object maxLength = options.get(MAX_LENGTH_OPTION);
+        return new TokenCodec(secrets, Boolean.parseBoolean(String.valueOf(options.get(ENCRYPT_OPTION))),
+                maxLength == null ? DEFAULT_MAX_LENGTH : Integer.parseInt(maxLength.toString()));
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Create a token for payload.
+     *
+     * @param purpose What the token is used for, the same has to be given
+     *                when decoding it.
+     * @throws IllegalStateException if the token exceeds the maximum length.
+     */
+    public String encode(String purpose, byte[] payload) {
+        try {
+            byte[] body = encrypt ? active.encrypt(purpose, payload) : payload;
+            String signed = active.id + "." + encoder.encodeToString(body);
+            String token = signed + "." + encoder.encodeToString(active.mac(purpose, signed));
+            if (token.length() > maxLength) {
+                throw new IllegalStateException("token exceeds " + maxLength + " characters: "
+                        + token.length());
+            }
+            return token;
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Verify a token and return its payload.
+     *
+     * @param purpose What the token is used for.
+     * @return The payload or null if the token is malformed, signed with an
+     *         unknown key, issued for a different purpose or has been
+     *         tampered with.
+     */
+    public byte[] decode(String purpose, String token) {
+        if (token == null || token.length() > maxLength) {
+            return null;
+        }
+        int first = token.indexOf('.');
+        int last = token.lastIndexOf('.');
+        if (first <= 0 || last == first) {
+            return null;
+        }
+        Key key = keys.get(token.substring(0, first));
+        if (key == null) {
+            return null;
+        }
+        try {
+            String signed = token.substring(0, last);
+            byte[] mac = decoder.decode(token.substring(last + 1));
+            if (!MessageDigest.isEqual(mac, key.mac(purpose, signed))) {
+                return null;
+            }
+            byte[] body = decoder.decode(token.substring(first + 1, last));
+            return encrypt ? key.decrypt(purpose, body) : body;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        } catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * A single key, from which separate keys for signing and encryption are
+     * derived.
+     */
+    private static final class Key {
+
+        private final String id;
+        private final Mac prototype;
+        private final SecretKeySpec encryptionKey;
+
+        Key(String id, byte[] secret) {
+            this.id = id;
+            try {
+                Mac derive = Mac.getInstance("HmacSHA256");
+                derive.init(new SecretKeySpec(secret, "HmacSHA256"));
+                byte[] signingKey = derive.doFinal("roast-sign".getBytes(StandardCharsets.US_ASCII));
+                byte[] cipherKey = derive.doFinal("roast-encrypt".getBytes(StandardCharsets.US_ASCII));
+
+                this.prototype = Mac.getInstance("HmacSHA256");
+                this.prototype.init(new SecretKeySpec(signingKey, "HmacSHA256"));
+                this.encryptionKey = new SecretKeySpec(cipherKey, 0, 16, "AES");
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Sign data for purpose. Key-ids never contain a '.', so the purpose
+         * cannot be confused with a part of data.
+         */
+        byte[] mac(String purpose, String data) throws GeneralSecurityException {
+            byte[] input = (purpose + "." + data).getBytes(StandardCharsets.UTF_8);
+            Mac mac;
+            try {
+                mac = (Mac) prototype.clone();
+            } catch (CloneNotSupportedException ex) {
+                synchronized (prototype) {
+                    return prototype.doFinal(input);
+                }
+            }
+            return mac.doFinal(input);
+        }
+
+        byte[] encrypt(String purpose, byte[] payload) throws GeneralSecurityException {
+            byte[] iv = new byte[IV_LENGTH];
+            TokenGenerator.getInstance().nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(128, iv));
+            cipher.updateAAD(purpose.getBytes(StandardCharsets.UTF_8));
+            byte[] encrypted = cipher.doFinal(payload);
+            byte[] result = new byte[IV_LENGTH + encrypted.length];
+            System.arraycopy(iv, 0, result, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, result, IV_LENGTH, encrypted.length);
+            return result;
+        }
+
+        byte[] decrypt(String purpose, byte[] body) throws GeneralSecurityException {
+            if (body.length < IV_LENGTH) {
+                throw new GeneralSecurityException("token too short");
+            }
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(128, body, 0, IV_LENGTH));
+            cipher.updateAAD(purpose.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(body, IV_LENGTH, body.length - IV_LENGTH);
+        }
+    }
+}
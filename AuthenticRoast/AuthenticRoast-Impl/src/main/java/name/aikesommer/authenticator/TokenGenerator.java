@@ -0,0 +1,214 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates unpredictable tokens, like the keys of SuperSessions, and random
+ * bytes, like initialization vectors.
+ * Threads share a few SecureRandoms, DRBGs where available, each seeded once
+ * from the platform source and picked by the id of the thread. This way
+ * issuing a token never blocks on entropy and threads rarely contend on a
+ * generator, while nothing is left behind in the threads of the container
+ * once the application is stopped.
+ * Optionally tokens are generated ahead of time by a background thread into
+ * a pool, so issuing one is a lock-free dequeue. The size of the pool is
+ * taken from the system property <code>roast.token-generator.pool-size</code>,
+ * 0 (the default) for no pool. The generator is shared by all applications
+ * using this library, so it is never closed; the daemon thread filling the
+ * pool ends whenever it has been idle for a few seconds.
+ * It is used internally only.
+ *
+ * @author Ratcash
+ */
+public class TokenGenerator {
+
+    public static final String POOL_SIZE_PROPERTY = "roast.token-generator.pool-size";
+
+    /**
+     * The number of random bytes in a token, encoded into 24 url-safe
+     * characters.
+     */
+    private static final int TOKEN_BYTES = 18;
+
+    /**
+     * The seconds the thread filling the pool waits for work before ending.
+     */
+    private static final long FILLER_KEEP_ALIVE = 5;
+
+    /**
+     * The number of characters in a token.
+     */
+    static final int TOKEN_LENGTH = TOKEN_BYTES / 3 * 4;
+
+    /**
+     * Only used to seed the generators.
+     */
+    private static final SecureRandom seeds = new SecureRandom();
+
+    private static final SecureRandom[] randoms = createRandoms(
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * Created last, as its pool may start filling right away.
+     */
+    private static final TokenGenerator instance = new TokenGenerator(
+            Integer.getInteger(POOL_SIZE_PROPERTY, 0));
+
+    private final int poolSize;
+
+    private final Queue<String> pool = new ConcurrentLinkedQueue<String>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicBoolean filling = new AtomicBoolean();
+
+    private final ThreadPoolExecutor filler;
+
+    /**
+     * Create a generator.
+     *
+     * @param poolSize The number of tokens generated ahead of time, 0 for
+     *                 none.
+     */
+    public TokenGenerator(int poolSize) {
+        this.poolSize = poolSize;
+        if (poolSize <= 0) {
+            this.filler = null;
+        } else {
+            this.filler = new ThreadPoolExecutor(1, 1, FILLER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "roast-token-generator");
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(TokenGenerator.class.getClassLoader());
+                    return thread;
+                }
+            });
+            this.filler.allowCoreThreadTimeOut(true);
+        }
+        fill();
+    }
+
+    private static SecureRandom[] createRandoms(int count) {
+        SecureRandom[] result = new SecureRandom[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = createRandom();
+        }
+        return result;
+    }
+
+    private static SecureRandom createRandom() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException ex) {
+            try {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException ex2) {
+                return new SecureRandom();
+            }
+        }
+        byte[] seed = new byte[32];
+        seeds.nextBytes(seed);
+        /** seeding before the first use keeps it from seeding itself */
+        random.setSeed(seed);
+        return random;
+    }
+
+    /**
+     * Get the generator configured by system properties.
+     */
+    public static TokenGenerator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Fill random with random bytes.
+     */
+    public void nextBytes(byte[] random) {
+        SecureRandom generator = randoms[(int) Thread.currentThread().getId() & (randoms.length - 1)];
+        synchronized (generator) {
+            generator.nextBytes(random);
+        }
+    }
+
+    /**
+     * Create a new token of url-safe characters.
+     */
+    public String nextToken() {
+        String token = pool.poll();
+        if (token == null) {
+            fill();
+            return generate();
+        }
+        if (pooled.decrementAndGet() < poolSize / 2) {
+            fill();
+        }
+        return token;
+    }
+
+    private String generate() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        nextBytes(bytes);
+        return encoder.encodeToString(bytes);
+    }
+
+    /**
+     * Have the pool filled in the background, unless that is already
+     * happening.
+     */
+    private void fill() {
+        if (filler == null || !filling.compareAndSet(false, true)) {
+            return;
+        }
+        filler.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    while (pooled.get() < poolSize) {
+                        pool.offer(generate());
+                        pooled.incrementAndGet();
+                    }
+                } finally {
+                    filling.set(false);
+                }
+            }
+        });
+    }
+}
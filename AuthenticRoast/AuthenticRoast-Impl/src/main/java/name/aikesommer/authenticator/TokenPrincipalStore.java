@@ -0,0 +1,165 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A principal-store keeping the principal in a signed cookie instead of the
+ * session, so that any node can authenticate a request without shared
+ * state. Only the name and groups of the principal are kept, together with
+ * an expiry time. Once less than half of its lifetime is left, the token
+ * is issued again with the next response, so users that keep using the
+ * application stay logged in.
+ * A new instance is used for every request.
+ *
+ * @author Ratcash
+ */
+public class TokenPrincipalStore implements PrincipalStore {
+
+    /**
+     * Option holding the lifetime of a token in seconds.
+     */
+    public static final String TTL_OPTION = "roast.token.ttl";
+
+    public static final int DEFAULT_TTL = 1800;
+
+    private static final String COOKIE_NAME = "ROAST_AUTH";
+
+    private static final byte VERSION = 1;
+
+    private static final String PURPOSE = "principal";
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    private final TokenCodec codec;
+
+    private final int ttl;
+
+    private SimplePrincipal principal;
+
+    private boolean fetched = false;
+
+    /**
+     * The expiry time of the token read by fetch().
+     */
+    private long expires;
+
+    public TokenPrincipalStore(HttpServletRequest request, HttpServletResponse response,
+            TokenCodec codec, int ttl) {
+        this.request = request;
+        this.response = response;
+        this.codec = codec;
+        this.ttl = ttl;
+    }
+
+    public void store(SimplePrincipal principal) {
+        this.principal = principal;
+        this.fetched = true;
+        issue(principal, System.currentTimeMillis());
+    }
+
+    private void issue(SimplePrincipal principal, long now) {
+        String token = codec.encode(PURPOSE, write(principal, now + ttl * 1000L));
+        response.addCookie(TokenCookies.create(request, COOKIE_NAME, token, ttl));
+    }
+
+    public SimplePrincipal fetch() {
+        if (!fetched) {
+            fetched = true;
+            Cookie cookie = TokenCookies.find(request, COOKIE_NAME);
+            if (cookie != null) {
+                principal = read(codec.decode(PURPOSE, cookie.getValue()));
+            }
+            long now = System.currentTimeMillis();
+            if (principal != null && expires - now < ttl * 1000L / 2 && !response.isCommitted()) {
+                issue(principal, now);
+            }
+        }
+        return principal;
+    }
+
+    public void invalidate() {
+        principal = null;
+        fetched = true;
+        if (TokenCookies.find(request, COOKIE_NAME) != null) {
+            response.addCookie(TokenCookies.create(request, COOKIE_NAME, "", 0));
+        }
+    }
+
+    private static byte[] write(SimplePrincipal principal, long expires) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeLong(expires);
+            out.writeUTF(principal.getName());
+            out.writeShort(principal.getGroups().size());
+            for (String group : principal.getGroups()) {
+                out.writeUTF(group);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private SimplePrincipal read(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            long expires = in.readLong();
+            if (expires < System.currentTimeMillis()) {
+                return null;
+            }
+            String name = in.readUTF();
+            String[] groups = new String[in.readUnsignedShort()];
+            for (int i = 0; i < groups.length; i++) {
+                groups[i] = in.readUTF();
+            }
+            if (in.available() > 0) {
+                return null;
+            }
+            this.expires = expires;
+            return new SimplePrincipal(name, groups);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
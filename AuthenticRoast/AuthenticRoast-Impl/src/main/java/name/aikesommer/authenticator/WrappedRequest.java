@@ -121,6 +121,13 @@ public abstract class WrappedRequest implements ModifiableRequest {
             return request;
         }
 
+        /**
+         * Get the request this one delegates to.
+         */
+        JSR196Request getRequest() {
+            return request;
+        }
+
         public Subject getClientSubject() {
             return request.getClientSubject();
         }
@@ -0,0 +1,154 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.enterprise.inject.spi.BeanManager;
+import junit.framework.TestCase;
+import name.aikesommer.authenticator.AuthenticationRequest.ManageAction;
+import name.aikesommer.authenticator.AuthenticationRequest.Status;
+
+/**
+ * @author Ratcash
+ */
+public class AuthModuleTest extends TestCase {
+
+    private static final int ROUNDS = 1000;
+
+    /**
+     * A reusable authenticator is resolved once and then served to all
+     * requests, even if the first requests race to resolve it.
+     */
+    public void testReusableAuthenticatorIsResolvedOnce() throws Exception {
+        final CountingModule module = new CountingModule();
+        final Set<PluggableAuthenticator> served = Collections.newSetFromMap(
+                new ConcurrentHashMap<PluggableAuthenticator, Boolean>());
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < ROUNDS; i++) {
+                    CDIHelper.BeanInstance<PluggableAuthenticator> instance = module.acquireAuthenticator();
+                    served.add(instance.get());
+                    module.releaseAuthenticator(instance);
+                }
+            }
+        });
+
+        assertEquals(1, served.size());
+        assertTrue("resolved " + module.resolved.get() + " times",
+                module.resolved.get() <= BoundedPoolTest.THREADS);
+    }
+
+    /**
+     * Once the CDI container of the application shuts down, the
+     * authenticator is resolved again.
+     */
+    public void testAuthenticatorIsResolvedAgainAfterShutdown() {
+        CountingModule module = new CountingModule();
+        PluggableAuthenticator first = module.acquireAuthenticator().get();
+        assertSame(first, module.acquireAuthenticator().get());
+        assertEquals(1, module.resolved.get());
+
+        CDIHelper.invalidate(beanManager());
+
+        PluggableAuthenticator second = module.acquireAuthenticator().get();
+        assertNotSame(first, second);
+        assertSame(second, module.acquireAuthenticator().get());
+        assertEquals(2, module.resolved.get());
+    }
+
+    /**
+     * An authenticator that is not reusable is resolved for every request.
+     */
+    public void testOtherAuthenticatorsAreResolvedPerRequest() {
+        CountingModule module = new CountingModule();
+        module.reusable = false;
+        PluggableAuthenticator first = module.acquireAuthenticator().get();
+        assertNotSame(first, module.acquireAuthenticator().get());
+    }
+
+    static BeanManager beanManager() {
+        return (BeanManager) Proxy.newProxyInstance(AuthModuleTest.class.getClassLoader(),
+                new Class<?>[] {BeanManager.class}, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    static class CountingModule extends AuthModule {
+
+        final AtomicInteger resolved = new AtomicInteger();
+
+        volatile boolean reusable = true;
+
+        @Override
+        protected PluggableAuthenticator getPrimaryAuthenticator() {
+            resolved.incrementAndGet();
+            return new TestAuthenticator();
+        }
+
+        @Override
+        protected boolean isReusable(PluggableAuthenticator authenticator) {
+            return reusable;
+        }
+
+        @Override
+        protected PrincipalStore getPrincipalStore() {
+            return null;
+        }
+    }
+
+    static class TestAuthenticator extends PluggableAuthenticator {
+
+        @Override
+        public Status tryAuthenticate(AuthenticationManager manager, AuthenticationRequest request) {
+            return Status.None;
+        }
+
+        @Override
+        public Status authenticate(AuthenticationManager manager, AuthenticationRequest request) {
+            return Status.None;
+        }
+
+        @Override
+        public ManageAction manage(AuthenticationManager manager, AuthenticationRequest request) {
+            return ManageAction.None;
+        }
+    }
+}
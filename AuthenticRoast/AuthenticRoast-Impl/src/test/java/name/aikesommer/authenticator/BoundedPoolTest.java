@@ -0,0 +1,140 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class BoundedPoolTest extends TestCase {
+
+    static final int THREADS = 8;
+
+    private static final int ROUNDS = 20000;
+
+    public void testOfferRejectsBeyondCapacity() {
+        BoundedPool<String> pool = new BoundedPool<String>(2);
+        assertTrue(pool.offer("a"));
+        assertTrue(pool.offer("b"));
+        assertFalse(pool.offer("c"));
+        assertNotNull(pool.poll());
+        assertNotNull(pool.poll());
+        assertNull(pool.poll());
+    }
+
+    public void testDrainEmptiesThePool() {
+        BoundedPool<String> pool = new BoundedPool<String>(4);
+        pool.offer("a");
+        pool.offer("b");
+        List<String> drained = pool.drain();
+        assertEquals(2, drained.size());
+        assertTrue(drained.contains("a"));
+        assertTrue(drained.contains("b"));
+        assertNull(pool.poll());
+    }
+
+    /**
+     * Objects are never handed out twice and never lost, while many threads
+     * take and return them.
+     */
+    public void testContention() throws Exception {
+        final BoundedPool<Item> pool = new BoundedPool<Item>(4);
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger discarded = new AtomicInteger();
+        final AtomicBoolean reused = new AtomicBoolean();
+
+        run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < ROUNDS; i++) {
+                    Item item = pool.poll();
+                    if (item == null) {
+                        item = new Item();
+                        created.incrementAndGet();
+                    }
+                    if (!item.inUse.compareAndSet(false, true)) {
+                        reused.set(true);
+                    }
+                    item.inUse.set(false);
+                    if (!pool.offer(item)) {
+                        discarded.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertFalse("an object was handed out twice", reused.get());
+        int pooled = pool.drain().size();
+        assertTrue(pooled <= pool.capacity());
+        assertEquals(created.get(), pooled + discarded.get());
+    }
+
+    /**
+     * Run task on several threads at once and fail with the first error.
+     */
+    static void run(final Runnable task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            Throwable error = errors.get(0);
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            }
+            throw (Error) error;
+        }
+    }
+
+    private static final class Item {
+
+        final AtomicBoolean inUse = new AtomicBoolean();
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Dependent;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class CDIHelperTest extends TestCase {
+
+    /**
+     * Every Dependent-scoped instance acquired is destroyed together with
+     * its CreationalContext once it is released.
+     */
+    public void testDependentInstancesAreDestroyed() {
+        FakeContainer container = new FakeContainer(Dependent.class);
+        for (int i = 0; i < 10; i++) {
+            CDIHelper.BeanInstance<Runnable> instance = CDIHelper.acquire(container.beanManager, Runnable.class);
+            assertTrue(instance.isDependent());
+            instance.release();
+        }
+        assertEquals(10, container.created.get());
+        assertEquals(10, container.destroyed.get());
+        assertEquals(10, container.released.get());
+    }
+
+    public void testNormalScopedInstancesAreLeftAlone() {
+        FakeContainer container = new FakeContainer(ApplicationScoped.class);
+        CDIHelper.BeanInstance<Runnable> instance = CDIHelper.acquire(container.beanManager, Runnable.class);
+        assertFalse(instance.isDependent());
+        instance.release();
+        assertEquals(0, container.destroyed.get());
+        assertNotNull(CDIHelper.getReference(Runnable.class, container.beanManager));
+    }
+
+    /**
+     * getReference() cannot hand out Dependent-scoped beans, as nobody
+     * would destroy them.
+     */
+    public void testGetReferenceRejectsDependentBeans() {
+        FakeContainer container = new FakeContainer(Dependent.class);
+        try {
+            CDIHelper.getReference(Runnable.class, container.beanManager);
+            fail("Dependent-scoped bean handed out by getReference()");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(container.created.get(), container.released.get());
+    }
+
+    /**
+     * Shutting down the container of one application does not invalidate
+     * what has been resolved for other applications.
+     */
+    public void testGenerationIsPerApplication() throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        ClassLoader other = new URLClassLoader(new URL[0], original);
+        try {
+            long current = CDIHelper.getGeneration();
+            thread.setContextClassLoader(other);
+            long otherGeneration = CDIHelper.getGeneration();
+            thread.setContextClassLoader(original);
+
+            CDIHelper.invalidate(new FakeContainer(Dependent.class).beanManager);
+
+            assertTrue(CDIHelper.getGeneration() != current);
+            thread.setContextClassLoader(other);
+            assertEquals(otherGeneration, CDIHelper.getGeneration());
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * A BeanManager with a single bean of type Runnable, counting instances
+     * created and destroyed.
+     */
+    static final class FakeContainer {
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger destroyed = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+        final Bean<?> bean;
+        final BeanManager beanManager;
+
+        FakeContainer(final Class<?> scope) {
+            bean = proxy(Bean.class, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getScope")) {
+                        return scope;
+                    }
+                    if (method.getName().equals("getBeanClass")) {
+                        return Runnable.class;
+                    }
+                    if (method.getName().equals("destroy")) {
+                        destroyed.incrementAndGet();
+                        return null;
+                    }
+                    return identity(proxy, method, args);
+                }
+            });
+            beanManager = proxy(BeanManager.class, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getBeans")) {
+                        return Collections.singleton(bean);
+                    }
+                    if (name.equals("resolve")) {
+                        return bean;
+                    }
+                    if (name.equals("isNormalScope")) {
+                        return !Dependent.class.equals(args[0]);
+                    }
+                    if (name.equals("createCreationalContext")) {
+                        return creationalContext();
+                    }
+                    if (name.equals("getReference")) {
+                        created.incrementAndGet();
+                        return new Runnable() {
+
+                            public void run() {
+                            }
+                        };
+                    }
+                    return identity(proxy, method, args);
+                }
+            });
+        }
+
+        private CreationalContext<?> creationalContext() {
+            return proxy(CreationalContext.class, new InvocationHandler() {
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("release")) {
+                        released.incrementAndGet();
+                        return null;
+                    }
+                    return identity(proxy, method, args);
+                }
+            });
+        }
+    }
+
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(CDIHelperTest.class.getClassLoader(),
+                new Class<?>[] {type}, handler));
+    }
+
+    static Object identity(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (method.getName().equals("toString")) {
+            return "fake " + method.getDeclaringClass().getSimpleName();
+        }
+        throw new UnsupportedOperationException(method.getName());
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.security.auth.Subject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class RecycledRequestTest extends TestCase {
+
+    /**
+     * A recycled request-object only refers to the request it has been
+     * reset for, nothing of the previous request is left.
+     */
+    public void testResetReplacesEverything() {
+        FakeRequest first = new FakeRequest("/first", "one");
+        FakeRequest second = new FakeRequest("/second", "two");
+        HttpServletResponse firstResponse = response();
+        HttpServletResponse secondResponse = response();
+        Subject firstSubject = new Subject();
+        Subject secondSubject = new Subject();
+
+        AuthenticationRequestImpl.JSR196 request = new AuthenticationRequestImpl.JSR196(
+                first.proxy, firstResponse, firstSubject, true);
+        assertEquals("/first", request.getRequestPath());
+        assertEquals("one", request.getSessionMap().get("name"));
+        request.setForwarded(true);
+
+        request.reset(second.proxy, secondResponse, secondSubject, false, null);
+
+        assertSame(second.proxy, request.getHttpServletRequest());
+        assertSame(secondResponse, request.getHttpServletResponse());
+        assertSame(secondSubject, request.getClientSubject());
+        assertFalse(request.isMandatory());
+        assertFalse(request.isForwarded());
+        assertEquals("/second", request.getRequestPath());
+        assertEquals("two", request.getSessionMap().get("name"));
+        assertEquals("two", request.getAuthenticationMap().get("name"));
+    }
+
+    public void testResetWithAuthenticationMap() {
+        FakeRequest first = new FakeRequest("/first", "one");
+        Map<String, Object> notes = new HashMap<String, Object>();
+        notes.put("name", "note");
+
+        AuthenticationRequestImpl.JSR196 request = new AuthenticationRequestImpl.JSR196(
+                first.proxy, response(), new Subject(), true);
+        request.reset(first.proxy, response(), new Subject(), true, notes);
+
+        assertSame(notes, request.getAuthenticationMap());
+        assertEquals("one", request.getSessionMap().get("name"));
+    }
+
+    /**
+     * A request-object waiting in the pool does not keep its last request
+     * alive.
+     */
+    public void testClearDropsTheRequest() {
+        FakeRequest first = new FakeRequest("/first", "one");
+        AuthenticationRequestImpl.JSR196 request = new AuthenticationRequestImpl.JSR196(
+                first.proxy, response(), new Subject(), true);
+        request.getSessionMap().get("name");
+
+        request.clear();
+
+        assertNull(request.getHttpServletRequest());
+        assertNull(request.getHttpServletResponse());
+        assertNull(request.getClientSubject());
+        assertNull(request.getAuthenticationMap());
+    }
+
+    private static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(RecycledRequestTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A request for path in the root context, with a session holding the
+     * attribute "name".
+     */
+    static final class FakeRequest implements InvocationHandler {
+
+        final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(
+                RecycledRequestTest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, this);
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        final SessionMapTest.FakeSession session;
+
+        final String path;
+
+        FakeRequest(String path, String name) {
+            this.path = path;
+            this.session = new SessionMapTest.FakeSession(path);
+            session.attributes.put("name", name);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getRequestURI")) {
+                return path;
+            }
+            if (name.equals("getContextPath")) {
+                return "";
+            }
+            if (name.equals("getQueryString")) {
+                return null;
+            }
+            if (name.equals("getAttribute")) {
+                return attributes.get(args[0]);
+            }
+            if (name.equals("setAttribute")) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            if (name.equals("getSession")) {
+                return session.proxy;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class SavedRequestTest extends TestCase {
+
+    /**
+     * More than writeUTF() can hold, with characters taking several bytes
+     * in UTF-8.
+     */
+    private static final String LONG;
+
+    static {
+        char[] chars = new char[40000];
+        Arrays.fill(chars, '\u00e4');
+        LONG = new String(chars);
+    }
+
+    public void testSerializesLongStrings() throws Exception {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Referer", LONG);
+        headers.put("Accept", "text/html");
+        SavedRequest saved = new SavedRequest("/app", "/page", "q=" + LONG,
+                Collections.singletonList("added=" + LONG), "GET", headers, null);
+
+        SavedRequest read = roundTrip(saved);
+
+        assertEquals("/app", read.getContext());
+        assertEquals("/page", read.getPath());
+        assertEquals("q=" + LONG, read.getQuery());
+        assertEquals(Collections.singletonList("added=" + LONG), read.getAddQuery());
+        assertEquals("GET", read.getMethod());
+        assertEquals(headers, read.getHeaders());
+        assertNull(read.getBody());
+    }
+
+    public void testSerializesMissingValues() throws Exception {
+        SavedRequest read = roundTrip(new SavedRequest("/app", "/page", null,
+                Collections.<String>emptyList()));
+
+        assertNull(read.getQuery());
+        assertNull(read.getMethod());
+        assertTrue(read.getAddQuery().isEmpty());
+        assertTrue(read.getHeaders().isEmpty());
+    }
+
+    /**
+     * The encoding used for the state parameter as well.
+     */
+    public void testStringEncoding() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SavedRequest.writeText(out, LONG);
+        SavedRequest.writeString(out, null);
+        SavedRequest.writeString(out, "");
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(LONG, SavedRequest.readText(in));
+        assertNull(SavedRequest.readString(in));
+        assertEquals("", SavedRequest.readString(in));
+        assertEquals(0, in.available());
+    }
+
+    private static SavedRequest roundTrip(SavedRequest saved) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(saved);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (SavedRequest) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
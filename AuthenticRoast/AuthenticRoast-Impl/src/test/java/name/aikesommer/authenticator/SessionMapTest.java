@@ -0,0 +1,185 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class SessionMapTest extends TestCase {
+
+    public void testReadsDoNotCreateSession() {
+        FakeRequest request = new FakeRequest();
+        AuthenticationRequestImpl.SessionMap map = new AuthenticationRequestImpl.SessionMap(request.proxy);
+        assertNull(map.get("missing"));
+        assertTrue(map.isEmpty());
+        assertNull(request.session);
+    }
+
+    /**
+     * Values, including missing ones, are read from the session only once
+     * per request.
+     */
+    public void testValuesAreCached() {
+        FakeRequest request = new FakeRequest();
+        FakeSession session = request.createSession("one");
+        session.attributes.put("name", "value");
+        AuthenticationRequestImpl.SessionMap map = new AuthenticationRequestImpl.SessionMap(request.proxy);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value", map.get("name"));
+            assertNull(map.get("missing"));
+        }
+
+        assertEquals(2, session.reads);
+    }
+
+    public void testWritesGoToTheSession() {
+        FakeRequest request = new FakeRequest();
+        AuthenticationRequestImpl.SessionMap map = new AuthenticationRequestImpl.SessionMap(request.proxy);
+        map.put("name", "value");
+        assertNotNull(request.session);
+        assertEquals("value", request.session.attributes.get("name"));
+        assertEquals("value", map.get("name"));
+        map.remove("name");
+        assertNull(request.session.attributes.get("name"));
+        assertNull(map.get("name"));
+    }
+
+    /**
+     * Values cached from a session that has been invalidated are dropped.
+     */
+    public void testInvalidationIsDetected() {
+        FakeRequest request = new FakeRequest();
+        FakeSession session = request.createSession("one");
+        session.attributes.put("name", "value");
+        AuthenticationRequestImpl.SessionMap map = new AuthenticationRequestImpl.SessionMap(request.proxy);
+        assertEquals("value", map.get("name"));
+
+        session.valid = false;
+        assertNull(map.get("name"));
+
+        FakeSession replacement = request.createSession("two");
+        replacement.attributes.put("name", "other");
+        assertEquals("other", map.get("name"));
+    }
+
+    /**
+     * Values cached from a session whose id has changed are read again.
+     */
+    public void testChangedIdIsDetected() {
+        FakeRequest request = new FakeRequest();
+        FakeSession session = request.createSession("one");
+        session.attributes.put("name", "value");
+        AuthenticationRequestImpl.SessionMap map = new AuthenticationRequestImpl.SessionMap(request.proxy);
+        assertEquals("value", map.get("name"));
+
+        session.id = "two";
+        session.attributes.put("name", "changed");
+        assertEquals("changed", map.get("name"));
+    }
+
+    static final class FakeRequest implements InvocationHandler {
+
+        final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(
+                SessionMapTest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, this);
+
+        FakeSession session;
+
+        FakeSession createSession(String id) {
+            session = new FakeSession(id);
+            return session;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getSession")) {
+                boolean create = args == null || (Boolean) args[0];
+                if ((session == null || !session.valid) && create) {
+                    createSession("created");
+                }
+                return session == null || !session.valid ? null : session.proxy;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    static final class FakeSession implements InvocationHandler {
+
+        final HttpSession proxy = (HttpSession) Proxy.newProxyInstance(
+                SessionMapTest.class.getClassLoader(), new Class<?>[] {HttpSession.class}, this);
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        String id;
+
+        boolean valid = true;
+
+        int reads;
+
+        FakeSession(String id) {
+            this.id = id;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (!valid) {
+                throw new IllegalStateException("invalidated");
+            }
+            if (name.equals("getId")) {
+                return id;
+            }
+            if (name.equals("getAttribute")) {
+                reads++;
+                return attributes.get(args[0]);
+            }
+            if (name.equals("setAttribute")) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            if (name.equals("removeAttribute")) {
+                attributes.remove(args[0]);
+                return null;
+            }
+            if (name.equals("getAttributeNames")) {
+                return Collections.enumeration(attributes.keySet());
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class SuperSessionAttributesTest extends TestCase {
+
+    private static final int ROUNDS = 2000;
+
+    /**
+     * Increments done through replace(name, expected, value) are never lost.
+     */
+    public void testConcurrentIncrements() throws Exception {
+        final ConcurrentMap<String, Object> attributes = new SuperSession("key").attributes();
+        attributes.put("count", 0);
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < ROUNDS; i++) {
+                    while (true) {
+                        Integer current = (Integer) attributes.get("count");
+                        if (attributes.replace("count", current, current + 1)) {
+                            break;
+                        }
+                    }
+                }
+            }
+        });
+
+        assertEquals(BoundedPoolTest.THREADS * ROUNDS, attributes.get("count"));
+    }
+
+    /**
+     * Only one of the threads adding the same attribute succeeds.
+     */
+    public void testConcurrentPutIfAbsent() throws Exception {
+        final ConcurrentMap<String, Object> attributes = new SuperSession("key").attributes();
+        final AtomicInteger added = new AtomicInteger();
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < ROUNDS; i++) {
+                    if (attributes.putIfAbsent("attribute-" + i, Thread.currentThread().getName()) == null) {
+                        added.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        assertEquals(ROUNDS, added.get());
+        assertEquals(ROUNDS, attributes.size());
+    }
+
+    /**
+     * Iterating sees the state at the time iteration started, while other
+     * threads keep changing the attributes: x and y are always put together,
+     * so an iteration never sees them differ.
+     */
+    public void testIterationIsConsistent() throws Exception {
+        final ConcurrentMap<String, Object> attributes = new SuperSession("key").attributes();
+        final AtomicBoolean inconsistent = new AtomicBoolean();
+        final AtomicInteger threads = new AtomicInteger();
+        attributes.putAll(pair(0));
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                boolean writer = threads.incrementAndGet() % 2 == 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    if (writer) {
+                        attributes.putAll(pair(i));
+                        continue;
+                    }
+                    Object x = null;
+                    Object y = null;
+                    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                        if ("x".equals(entry.getKey())) {
+                            x = entry.getValue();
+                        } else if ("y".equals(entry.getKey())) {
+                            y = entry.getValue();
+                        }
+                    }
+                    if (x == null || !x.equals(y)) {
+                        inconsistent.set(true);
+                    }
+                }
+            }
+        });
+
+        assertFalse("an iteration saw a partial change", inconsistent.get());
+    }
+
+    private static Map<String, Object> pair(int value) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("x", value);
+        result.put("y", value);
+        return result;
+    }
+
+    public void testClear() {
+        ConcurrentMap<String, Object> attributes = new SuperSession("key").attributes();
+        attributes.put("a", 1);
+        attributes.put("b", 2);
+        attributes.clear();
+        assertTrue(attributes.isEmpty());
+        assertNull(attributes.get("a"));
+    }
+
+    /**
+     * A snapshot from the backend replaces the attributes unless they have
+     * been changed locally while it was being loaded.
+     */
+    public void testApplyLosesAgainstLocalChange() {
+        SuperSession session = new SuperSession("key");
+        Map<String, Object> expected = session.state();
+        session.attributes().put("local", "newer");
+
+        SuperSessionBackend.Snapshot snapshot = new SuperSessionBackend.Snapshot(1,
+                Collections.<String, Object>singletonMap("remote", "older"));
+        assertFalse(session.apply(snapshot, expected, System.currentTimeMillis()));
+        assertEquals("newer", session.attributes().get("local"));
+        assertNull(session.attributes().get("remote"));
+
+        assertTrue(session.apply(snapshot, session.state(), System.currentTimeMillis()));
+        assertEquals("older", session.attributes().get("remote"));
+        assertNull(session.attributes().get("local"));
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ *    Copyright (C) 2015 Ratcash
+ *
+ *    This file is part of AuthenticRoast.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation; either
+ *    version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General
+ *    Public License along with this library; if not, write to the
+ *    Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ *    Boston, MA 02110-1301 USA
+ *
+ *    You can reach the author and get more information about this
+ *    project at: http://aikesommer.name/
+ */
+package name.aikesommer.authenticator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.TestCase;
+
+/**
+ * @author Ratcash
+ */
+public class SuperSessionRegistryTest extends TestCase {
+
+    private static final int KEYS = 16;
+
+    private static final int ROUNDS = 5000;
+
+    public void testGetWithoutCreate() {
+        SuperSessionRegistry registry = new SuperSessionRegistry();
+        assertNull(registry.get("missing", false));
+        SuperSession session = registry.get("present", true);
+        assertSame(session, registry.get("present", false));
+        assertEquals("present", session.getKey());
+    }
+
+    /**
+     * Threads asking for the same key concurrently all get the same
+     * SuperSession.
+     */
+    public void testConcurrentGetReturnsOneInstance() throws Exception {
+        final SuperSessionRegistry registry = new SuperSessionRegistry();
+        final ConcurrentMap<String, SuperSession> seen = new ConcurrentHashMap<String, SuperSession>();
+        final AtomicBoolean different = new AtomicBoolean();
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < ROUNDS; i++) {
+                    String key = "key-" + (i % KEYS);
+                    SuperSession session = registry.get(key, true);
+                    SuperSession first = seen.putIfAbsent(key, session);
+                    if (first != null && first != session) {
+                        different.set(true);
+                    }
+                }
+            }
+        });
+
+        assertFalse("different SuperSessions for the same key", different.get());
+        assertEquals(KEYS, registry.size());
+    }
+
+    public void testInvalidateRemovesAndNotifies() {
+        SuperSessionRegistry registry = new SuperSessionRegistry();
+        Recorder recorder = new Recorder();
+        registry.addListener(recorder);
+        SuperSession session = registry.get("key", true);
+
+        registry.invalidate("key");
+
+        assertNull(registry.get("key", false));
+        assertEquals(1, registry.getEvictions(SuperSessionRegistry.Cause.Invalidated));
+        assertEquals(1, recorder.causes.size());
+        assertEquals(SuperSessionRegistry.Cause.Invalidated, recorder.causes.get(0));
+        assertSame(session, recorder.sessions.get(0));
+    }
+
+    /**
+     * Entries whose SuperSession has been collected are removed by later
+     * lookups.
+     */
+    public void testCollectedEntriesAreRemoved() throws Exception {
+        SuperSessionRegistry registry = new SuperSessionRegistry();
+        registry.get("key", true);
+        for (int i = 0; i < 50 && registry.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            registry.get("other", false);
+        }
+        assertEquals(0, registry.size());
+        assertEquals(1, registry.getEvictions(SuperSessionRegistry.Cause.Collected));
+    }
+
+    /**
+     * Entries not accessed for the idle timeout are evicted by the timing
+     * wheel, those accessed in time are kept.
+     */
+    public void testIdleEntriesExpire() throws Exception {
+        SuperSessionRegistry registry = new SuperSessionRegistry(100, 0);
+        Recorder recorder = new Recorder();
+        registry.addListener(recorder);
+        SuperSession idle = registry.get("idle", true);
+        SuperSession used = registry.get("used", true);
+
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(30);
+            assertSame(used, registry.get("used", false));
+        }
+
+        assertNull(registry.get("idle", false));
+        assertSame(used, registry.get("used", false));
+        assertEquals(1, registry.getEvictions(SuperSessionRegistry.Cause.Expired));
+        assertEquals("idle", recorder.keys.get(0));
+        assertSame(idle, recorder.sessions.get(0));
+    }
+
+    /**
+     * The number of entries never exceeds the maximum, no matter how many
+     * SuperSessions are created.
+     */
+    public void testSizeEviction() throws Exception {
+        final SuperSessionRegistry registry = new SuperSessionRegistry(0, 10);
+        final List<SuperSession> held = new ArrayList<SuperSession>();
+
+        BoundedPoolTest.run(new Runnable() {
+
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    SuperSession session = registry.get(TokenGenerator.getInstance().nextToken(), true);
+                    synchronized (held) {
+                        held.add(session);
+                    }
+                }
+            }
+        });
+
+        assertTrue("too many entries: " + registry.size(), registry.size() <= 10);
+        assertEquals(held.size() - registry.size(), registry.getEvictions(SuperSessionRegistry.Cause.Size));
+    }
+
+    /**
+     * An entry that has been accessed since it was added gets a second
+     * chance, so the oldest one not accessed is evicted instead.
+     */
+    public void testSizeEvictionPrefersUnusedEntries() {
+        SuperSessionRegistry registry = new SuperSessionRegistry(0, 4);
+        List<SuperSession> held = new ArrayList<SuperSession>();
+        for (String key : new String[] {"a", "b", "c", "d"}) {
+            held.add(registry.get(key, true));
+        }
+        registry.get("a", false);
+
+        held.add(registry.get("e", true));
+
+        assertNotNull(registry.get("a", false));
+        assertNull(registry.get("b", false));
+        assertEquals(4, registry.size());
+    }
+
+    /**
+     * Evicting an entry only drops the local copy, the backend is only told
+     * about invalidated SuperSessions.
+     */
+    public void testEvictionKeepsBackendEntry() {
+        SuperSessionRegistry registry = new SuperSessionRegistry(0, 1);
+        RecordingBackend backend = new RecordingBackend();
+        SuperSessionReplicator replicator = new SuperSessionReplicator(backend, 60000, 60000, 16, 1000);
+        registry.setReplicator(replicator);
+        try {
+            SuperSession first = registry.get("first", true);
+            SuperSession second = registry.get("second", true);
+            assertEquals(1, registry.getEvictions(SuperSessionRegistry.Cause.Size));
+            registry.invalidate("second");
+            replicator.flush();
+            assertEquals(Collections.singletonList("second"), backend.removed);
+            assertNotNull(first);
+            assertNotNull(second);
+        } finally {
+            replicator.close();
+        }
+    }
+
+    static final class Recorder implements SuperSessionRegistry.Listener {
+
+        final List<String> keys = new ArrayList<String>();
+        final List<SuperSession> sessions = new ArrayList<SuperSession>();
+        final List<SuperSessionRegistry.Cause> causes = new ArrayList<SuperSessionRegistry.Cause>();
+
+        public synchronized void evicted(String key, SuperSession session, SuperSessionRegistry.Cause cause) {
+            keys.add(key);
+            sessions.add(session);
+            causes.add(cause);
+        }
+    }
+
+    static final class RecordingBackend implements SuperSessionBackend {
+
+        final List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+
+        public Snapshot load(String key) {
+            return null;
+        }
+
+        public void store(Map<String, Snapshot> batch) {
+        }
+
+        public void remove(Collection<String> keys) {
+            removed.addAll(keys);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -20,7 +20,8 @@
             Use "test" as username and password!
         </p>
 
-        <form action="j_security_check" method="POST">
+        <% String state = request.getParameter("roast_state"); %>
+        <form action="j_security_check<%= state == null ? "" : "?roast_state=" + state.replaceAll("[^A-Za-z0-9._-]", "") %>" method="POST">
             Username: <input type="text" name="j_username"><br>
             Password: <input type="password" name="j_password"><br>
             <input type="submit" value="Login">